@@ -39,4 +39,12 @@ public @interface EOSGiTestClass {
    * @return the number how many times the class should be executed.
    */
   int executionCount() default 1;
+
+  /**
+   * The priority of the test class. Test classes with higher priority are started earlier. See
+   * {@link TestRunnerConstants#SERVICE_PROPERTY_TEST_PRIORITY}.
+   *
+   * @return the priority of the test class.
+   */
+  int priority() default 0;
 }
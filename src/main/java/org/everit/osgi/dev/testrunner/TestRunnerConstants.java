@@ -27,12 +27,26 @@ public final class TestRunnerConstants {
    */
   public static final String CAPABILITY_TESTCLASS_ATTR_EXECUTION_COUNT = "executionCount";
 
+  /**
+   * The attribute of the {@link #CAPABILITY_TESTCLASS_NAMESPACE} capability that specifies the
+   * priority of the test class. See {@link #SERVICE_PROPERTY_TEST_PRIORITY}.
+   */
+  public static final String CAPABILITY_TESTCLASS_ATTR_PRIORITY = "priority";
+
   /**
    * The name of the capability that tells the test runner that the bundle contains test cases that
    * the test runner should wait for before shutting down the OSGi container.
    */
   public static final String CAPABILITY_TESTCLASS_NAMESPACE = "eosgi.testClass";
 
+  /**
+   * Name of the System or Framework property that specifies the maximum number of test classes of
+   * {@link org.everit.osgi.dev.testrunner.engine.AsyncTestEngine}s that can be in flight at the
+   * same time. Asynchronous test classes do not occupy a thread of the test runner, so they are not
+   * limited by {@link #PROP_TEST_PARALLELISM}. The default value is 16.
+   */
+  public static final String PROP_ASYNC_TEST_MAX_IN_FLIGHT = "eosgi.asyncTestMaxInFlight";
+
   /**
    * The time in ms until the testrunner will wait for non-deamon threads stopping before exiting
    * the vm when {@link #PROP_STOP_AFTER_TESTS} environment variable is set to "true".
@@ -48,33 +62,250 @@ public final class TestRunnerConstants {
    */
   public static final String PROP_DEVELOPMENT_MODE = "eosgi.developmentMode";
 
+  /**
+   * Name of the System or Framework property that specifies if the test runner should stop at the
+   * first failing test class. In that case no new tests are started after the first failure or
+   * error and the framework is stopped without waiting for the remaining tests if
+   * {@link #PROP_STOP_AFTER_TESTS} is set. The {@link Boolean#parseBoolean(String)} is used to
+   * determine the value of this setting.
+   */
+  public static final String PROP_FAIL_FAST = "eosgi.failFast";
+
+  /**
+   * Name of the System or Framework property that specifies how many times a test class is
+   * re-run if it has failures or errors. The result of the last attempt is reported and the
+   * failures of the previous attempts are written into the XML result as flaky or rerun failures.
+   * A retried test class counts as executed only once. If not specified, failed test classes are
+   * not retried.
+   */
+  public static final String PROP_RETRY_COUNT = "eosgi.retryCount";
+
+  /**
+   * Name of the System or Framework property that specifies the number of shards that the tests
+   * are split into. Every test service is assigned to a shard based on a stable hash of its class
+   * name and its {@link #SERVICE_PROPERTY_TEST_ID}, so the same test distribution can be started in
+   * several JVMs with different {@link #PROP_SHARD_INDEX} values and every test runs in exactly one
+   * of them. If not specified, there is one shard that contains all tests.
+   */
+  public static final String PROP_SHARD_COUNT = "eosgi.shardCount";
+
+  /**
+   * Name of the System or Framework property that specifies the zero based index of the shard that
+   * is executed in this JVM. See {@link #PROP_SHARD_COUNT}.
+   */
+  public static final String PROP_SHARD_INDEX = "eosgi.shardIndex";
+
+  /**
+   * Name of the System or Framework property that specifies if a stack trace that is the same as
+   * the stack trace of a previous test case of the same test class should be replaced with a
+   * reference to that test case in the text results. The XML results always contain the whole
+   * stack traces. The {@link Boolean#parseBoolean(String)} is used to determine the value of this
+   * setting.
+   */
+  public static final String PROP_STACK_TRACE_DEDUPLICATION = "eosgi.stackTraceDeduplication";
+
+  /**
+   * Name of the System or Framework property that specifies which consecutive stack trace frames
+   * are folded into one line in the results. The value is a comma separated list of class name
+   * prefixes or <code>true</code> to fold the frames of the OSGi frameworks (Felix and Equinox),
+   * the reflection API, the concurrency utilities and the test runner. If not specified, the
+   * stack traces are not folded.
+   */
+  public static final String PROP_STACK_TRACE_FOLDING = "eosgi.stackTraceFolding";
+
   /**
    * System property that indicates that the framework should be stopped * after running the tests.
    */
   public static final String PROP_STOP_AFTER_TESTS = "eosgi.stopAfterTests";
 
+  /**
+   * Name of the System or Framework property that specifies the coalescing window of test service
+   * arrivals in milliseconds. If the value is greater than zero, the test runner waits until no new
+   * test service is registered for the specified time before it starts the ready tests, so the
+   * tests that are registered together are ordered together. To avoid starving under a constant
+   * stream of registrations, the tests are started at the latest ten windows after the first
+   * arrival. If not specified, the tests are started as soon as they are registered.
+   */
+  public static final String PROP_TEST_ARRIVAL_QUIESCENCE = "eosgi.testArrivalQuiescence";
+
+  /**
+   * Name of the System or Framework property that specifies the maximum number of threads that
+   * the test classes and their test cases can use together. The threads above
+   * {@link #PROP_TEST_PARALLELISM} are shared by the running test classes to run their test cases
+   * in parallel via {@link org.everit.osgi.dev.testrunner.engine.TestExecutionContext#executor}.
+   * If not specified, the value of {@link #PROP_TEST_PARALLELISM} is used, so the test cases of a
+   * test class run one after another.
+   */
+  public static final String PROP_TEST_MAX_THREADS = "eosgi.testMaxThreads";
+
+  /**
+   * Name of the System or Framework property that specifies how many test classes may run at the
+   * same time. If the value is greater than one, the test runner dispatches at most the specified
+   * amount of test classes at the same time to an executor that starts a new thread whenever all
+   * of its threads are busy, or a new virtual thread for every test class if
+   * {@link #PROP_TEST_VIRTUAL_THREADS} is enabled on Java 21 or above. The setting limits the
+   * number of concurrently dispatched test classes, not the number of threads, as a thread of a
+   * test class that did not finish after its timeout is not reused. If not specified, the test
+   * classes run one after another.
+   */
+  public static final String PROP_TEST_PARALLELISM = "eosgi.testParallelism";
+
+  /**
+   * Name of the System or Framework property that specifies the time in milliseconds that a test
+   * class can run. If a test class does not finish in time, a thread dump is written into the
+   * {@link #PROP_TEST_RESULT_FOLDER}, the test thread is interrupted and the test class is reported
+   * with an error. The other tests keep running. If not specified, there is no timeout.
+   */
+  public static final String PROP_TEST_TIMEOUT = "eosgi.testTimeout";
+
+  /**
+   * Name of the System or Framework property that specifies if the test runner should re-run the
+   * affected tests when a test service is modified or re-registered or when a bundle in the wiring
+   * closure of a test service is updated. Watch mode is available only in development mode
+   * ({@link #PROP_DEVELOPMENT_MODE}) and not together with {@link #PROP_STOP_AFTER_TESTS}. The
+   * {@link Boolean#parseBoolean(String)} is used to determine the value of this setting.
+   */
+  public static final String PROP_TEST_WATCH = "eosgi.testWatch";
+
+  /**
+   * Name of the System or Framework property that specifies the time in milliseconds without
+   * changes that the test runner waits for in watch mode ({@link #PROP_TEST_WATCH}) before it
+   * re-runs the affected tests. The default value is 500.
+   */
+  public static final String PROP_TEST_WATCH_DEBOUNCE = "eosgi.testWatchDebounce";
+
+  /**
+   * Name of the System or Framework property that specifies if the test classes should run on
+   * virtual threads. Virtual threads are used only if the JVM supports them (Java 21 or above) and
+   * the tests do not run on the dispatcher thread, that is if {@link #PROP_TEST_PARALLELISM} is
+   * greater than one, {@link #PROP_TEST_TIMEOUT} is specified or {@link #PROP_TEST_MAX_THREADS} is
+   * greater than {@link #PROP_TEST_PARALLELISM}. The test cases that the test classes run in
+   * parallel get virtual threads as well. With virtual threads the value of
+   * {@link #PROP_TEST_PARALLELISM} can be much higher than the number of CPU cores, as test classes
+   * that wait for I/O do not block a platform thread. The {@link Boolean#parseBoolean(String)} is
+   * used to determine the value of this setting.
+   */
+  public static final String PROP_TEST_VIRTUAL_THREADS = "eosgi.testVirtualThreads";
+
+  /**
+   * Name of the System or Framework property that specifies if the results of all test classes
+   * should be appended to one binary file in the {@link #PROP_TEST_RESULT_FOLDER} instead of the
+   * text and XML files. Writing the binary records is much cheaper than rendering the text and XML
+   * results, which matters if the tests run thousands of times. The binary file can be converted
+   * to the text and XML results after the run by executing the JAR of the test runner bundle. Only
+   * a one line summary is logged for the test classes that passed. This setting takes precedence
+   * over {@link #PROP_TEST_RESULT_CONSOLIDATED} and {@link #PROP_TEST_RESULT_XML_APPEND}. The
+   * {@link Boolean#parseBoolean(String)} is used to determine the value of this setting.
+   */
+  public static final String PROP_TEST_RESULT_BINARY = "eosgi.testResultBinary";
+
+  /**
+   * Name of the System or Framework property that enables the incremental mode of the test runner.
+   * In incremental mode the results of the successful test runs are cached in the
+   * {@link #PROP_TEST_RESULT_FOLDER}. The key of the cache is calculated from the content of the
+   * bundle of the test service and all bundles in its wiring closure, the
+   * {@link #SERVICE_PROPERTY_TEST_ID} and the name of the engine. If a test with the same key ran
+   * successfully before, it is not executed again, but its cached result is reported. The
+   * {@link Boolean#parseBoolean(String)} is used to determine the value of this setting.
+   */
+  public static final String PROP_TEST_RESULT_CACHE = "eosgi.testResultCache";
+
+  /**
+   * Name of the System or Framework property that specifies if the results of all test classes
+   * should be written into one XML file with a testsuites element and one text file in the
+   * {@link #PROP_TEST_RESULT_FOLDER} instead of two files for each test class. Both files are
+   * opened when the first result arrives, they are written with a large buffer and they are closed
+   * when the test runner stops. This setting implies {@link #PROP_TEST_RESULT_XML_APPEND}. The
+   * {@link Boolean#parseBoolean(String)} is used to determine the value of this setting.
+   */
+  public static final String PROP_TEST_RESULT_CONSOLIDATED = "eosgi.testResultConsolidated";
+
   /**
    * The name of the system property that points to the folder where TEXT and XML based test results
    * should be dumped.
    */
   public static final String PROP_TEST_RESULT_FOLDER = "eosgi.testResultFolder";
 
+  /**
+   * Name of the System or Framework property that specifies which testsuite elements of the XML
+   * results contain the system properties. The system properties are captured once when the test
+   * runner starts. Possible values are {@link #TEST_RESULT_PROPERTIES_SUITE},
+   * {@link #TEST_RESULT_PROPERTIES_RUN} and {@link #TEST_RESULT_PROPERTIES_NONE}. If not
+   * specified, every testsuite element contains the system properties.
+   */
+  public static final String PROP_TEST_RESULT_PROPERTIES = "eosgi.testResultProperties";
+
+  /**
+   * Name of the System or Framework property that specifies a regular expression that the keys of
+   * the system properties must match to be written into the XML results. If not specified, all
+   * system properties are written.
+   */
+  public static final String PROP_TEST_RESULT_PROPERTIES_FILTER =
+      "eosgi.testResultPropertiesFilter";
+
+  /**
+   * Name of the System or Framework property that specifies if the XML results of all test classes
+   * should be appended as testsuite elements to one testsuites file in the
+   * {@link #PROP_TEST_RESULT_FOLDER} instead of writing an XML file for each test class. The file
+   * is opened when the test runner starts and closed when it stops, so appending a test class does
+   * not depend on the size of the file. The {@link Boolean#parseBoolean(String)} is used to
+   * determine the value of this setting.
+   */
+  public static final String PROP_TEST_RESULT_XML_APPEND = "eosgi.testResultXmlAppend";
+
   /**
    * The key of the property that contains the id of the test. Those OSGi services are picked up
    * that have this service property.
    */
   public static final String SERVICE_PROPERTY_TEST_ID = "eosgi.testId";
 
+  /**
+   * The key of the service property that specifies the priority of a test service. Tests with
+   * higher priority are started before the tests with lower priority, so e.g. smoke tests can gate
+   * a deployment before the long running tests start. If the service property is not specified,
+   * the {@link #CAPABILITY_TESTCLASS_ATTR_PRIORITY} attribute of the
+   * {@link #CAPABILITY_TESTCLASS_NAMESPACE} capability of the test class is used. The default
+   * priority is zero.
+   */
+  public static final String SERVICE_PROPERTY_TEST_PRIORITY = "eosgi.testPriority";
+
   /**
    * Required service property for test services and test engine services.
    */
   public static final String SERVICE_PROPERTY_TESTRUNNER_ENGINE = "eosgi.testEngine";
 
+  /**
+   * Optional service property of test engine services that specifies how many tests of the engine
+   * can run at the same time. Every engine has its own execution lane, so a slow engine cannot hold
+   * back the tests of other engines. If not specified, only the
+   * {@link #PROP_TEST_PARALLELISM} setting limits the concurrency of the engine.
+   */
+  public static final String SERVICE_PROPERTY_TESTRUNNER_ENGINE_MAX_CONCURRENCY =
+      "eosgi.testEngine.maxConcurrency";
+
   /**
    * The name of the file that is written if there is an error during system exit.
    */
   public static final String SYSTEM_EXIT_ERROR_FILE_NAME = "system-exit-error.txt";
 
+  /**
+   * Value of the {@link #PROP_TEST_RESULT_PROPERTIES} property that specifies that the system
+   * properties are not written into the XML results.
+   */
+  public static final String TEST_RESULT_PROPERTIES_NONE = "none";
+
+  /**
+   * Value of the {@link #PROP_TEST_RESULT_PROPERTIES} property that specifies that the system
+   * properties are written only into the first testsuite element of the run.
+   */
+  public static final String TEST_RESULT_PROPERTIES_RUN = "run";
+
+  /**
+   * Value of the {@link #PROP_TEST_RESULT_PROPERTIES} property that specifies that the system
+   * properties are written into every testsuite element.
+   */
+  public static final String TEST_RESULT_PROPERTIES_SUITE = "suite";
+
   private TestRunnerConstants() {
     // Do nothing
   }
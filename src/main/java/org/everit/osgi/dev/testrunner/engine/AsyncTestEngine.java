@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.engine;
+
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+import aQute.bnd.annotation.ConsumerType;
+
+/**
+ * A {@link TestEngine} that runs the tests of a test object instance without blocking the calling
+ * thread. Engines that drive non-blocking clients can implement this interface, so the test runner
+ * can have many test classes in flight without occupying a thread for each of them.
+ */
+@ConsumerType
+public interface AsyncTestEngine extends TestEngine {
+
+  /**
+   * Runs a test based on a test object instance and waits for the result.
+   *
+   * @param testObject
+   *          The test object instance that contains the test cases.
+   * @param properties
+   *          Attributes that belong to the testObject. E.g.: If the testObject is received as an
+   *          OSGi Service, the properties parameter contains the service properties.
+   * @param context
+   *          The context that the test runner is started in. TestEngines may behave differently
+   *          based on the attributes of the context.
+   *
+   * @return The test results of the specified test object.
+   */
+  @Override
+  default TestClassResult runTestsOfInstance(final Object testObject,
+      final Map<String, ?> properties, final TestExecutionContext context) {
+    return runTestsOfInstanceAsync(testObject, properties, context).toCompletableFuture().join();
+  }
+
+  /**
+   * Starts running a test based on a test object instance. The method should return as soon as
+   * possible and complete the returned stage when all test cases of the test object are finished.
+   *
+   * @param testObject
+   *          The test object instance that contains the test cases.
+   * @param properties
+   *          Attributes that belong to the testObject. E.g.: If the testObject is received as an
+   *          OSGi Service, the properties parameter contains the service properties.
+   * @param context
+   *          The context that the test runner is started in. TestEngines may behave differently
+   *          based on the attributes of the context.
+   *
+   * @return The stage that is completed with the test results of the specified test object.
+   */
+  CompletionStage<TestClassResult> runTestsOfInstanceAsync(Object testObject,
+      Map<String, ?> properties, TestExecutionContext context);
+
+}
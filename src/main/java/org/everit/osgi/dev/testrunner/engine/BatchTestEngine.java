@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.engine;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import aQute.bnd.annotation.ConsumerType;
+
+/**
+ * A {@link TestEngine} that can run the tests of several test object instances in one call. The
+ * test runner passes all test objects of the engine to this interface that are ready at the same
+ * time, so the engine can share expensive setup like reflection metadata, runners or fixtures
+ * between them. Engines that implement only {@link TestEngine} get the test objects one by one.
+ */
+@ConsumerType
+public interface BatchTestEngine extends TestEngine {
+
+  /**
+   * Runs the tests of several test object instances.
+   *
+   * @param testInstances
+   *          The test object instances together with their attributes.
+   * @param context
+   *          The context that the test runner is started in. TestEngines may behave differently
+   *          based on the attributes of the context.
+   *
+   * @return The test results of the specified test object instances. The stream must contain
+   *         exactly one result for every test instance in the same order as the instances are
+   *         passed. The test runner reports every result as soon as it is available in the stream,
+   *         so it is recommended to run the tests lazily while the stream is consumed.
+   */
+  Stream<TestClassResult> runTestsOfInstances(List<TestInstance> testInstances,
+      TestExecutionContext context);
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.engine;
+
+import aQute.bnd.annotation.ProviderType;
+
+/**
+ * Listener that receives the events of the test cases while a test class is running. The test
+ * runner passes an instance via {@link TestExecutionContext#testCaseListener}. If a
+ * {@link TestEngine} notifies the listener about a finished test case, it should not add the same
+ * test case to {@link TestClassResult#testCaseResults}, only count it in the counters of the
+ * {@link TestClassResult}. In that way the test runner can report the test cases incrementally
+ * and does not have to keep all of them in memory until the test class finishes. The methods of
+ * the listener can be called from several threads.
+ */
+@ProviderType
+public interface TestCaseListener {
+
+  /**
+   * Called when a test case finished.
+   *
+   * @param testObject
+   *          The test object instance that was passed to the {@link TestEngine}.
+   * @param className
+   *          The name of the test class, the same as the one in {@link TestClassResult#className}.
+   * @param testCaseResult
+   *          The result of the test case.
+   */
+  void testCaseFinished(Object testObject, String className, TestCaseResult testCaseResult);
+
+  /**
+   * Called when a test case is started.
+   *
+   * @param testObject
+   *          The test object instance that was passed to the {@link TestEngine}.
+   * @param className
+   *          The name of the test class, the same as the one in {@link TestClassResult#className}.
+   * @param testMethodName
+   *          The name of the test case.
+   */
+  void testCaseStarted(Object testObject, String className, String testMethodName);
+}
@@ -48,6 +48,12 @@ public class TestClassResult {
    */
   public long ignoreCount;
 
+  /**
+   * The results of the previous failed attempts if the test runner retried the test class. The
+   * list is filled by the test runner, test engines should leave it empty.
+   */
+  public List<TestClassResult> previousAttempts = new ArrayList<>();
+
   /**
    * The count of tests that ran.
    */
@@ -15,10 +15,33 @@
  */
 package org.everit.osgi.dev.testrunner.engine;
 
+import java.util.concurrent.Executor;
+
 /**
  * The context of the TestRunner. Settings that test engines must take care of.
  */
 public class TestExecutionContext {
 
   public boolean developmentMode;
+
+  /**
+   * The executor that the test engine can use to run the test cases of the test class in
+   * parallel. The executor is managed by the test runner, so the engine must not create its own
+   * thread pool. If the thread budget of the test runner is exhausted, the submitted task runs on
+   * the calling thread.
+   */
+  public Executor executor;
+
+  /**
+   * The number of test cases of the test class that may run at the same time, including the
+   * thread that called the test engine. The test engine should not submit more tasks to the
+   * {@link #executor} at the same time than this value minus one.
+   */
+  public int parallelism = 1;
+
+  /**
+   * The listener that the test engine can notify about the started and finished test cases. The
+   * value is <code>null</code> if the test runner does not support streaming of test case results.
+   */
+  public TestCaseListener testCaseListener;
 }
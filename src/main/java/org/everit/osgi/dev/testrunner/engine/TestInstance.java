@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.engine;
+
+import java.util.Map;
+
+/**
+ * A test object instance together with its attributes that is passed to a
+ * {@link BatchTestEngine}.
+ */
+public class TestInstance {
+
+  /**
+   * Attributes that belong to the testObject. E.g.: If the testObject is received as an OSGi
+   * Service, the properties contain the service properties.
+   */
+  public Map<String, ?> properties;
+
+  /**
+   * The test object instance that contains the test cases.
+   */
+  public Object testObject;
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+
+/**
+ * Converts a binary result file that was written by {@link BinaryResultLogWriter} to the text and
+ * XML results that the test runner writes by default. The converter runs outside of the OSGi
+ * framework:
+ *
+ * <pre>
+ * java -jar testrunner.jar &lt;binaryFile&gt; &lt;outputFolder&gt; [-consolidated]
+ * </pre>
+ *
+ * <p>
+ * Without the <code>-consolidated</code> option a text and an XML file is written for every
+ * record. With the option, all records are written into one XML file with a testsuites element
+ * and one text file, named after the binary file. The system properties of the test run are not
+ * part of the binary format, so the properties elements of the testsuites are empty.
+ */
+public final class BinaryResultConverter {
+
+  /**
+   * The size of the write buffer in characters of the consolidated result files.
+   */
+  private static final int CONSOLIDATED_BUFFER_SIZE = 1024 * 1024;
+
+  private static final String CONSOLIDATED_OPTION = "-consolidated";
+
+  private static final int EXIT_CODE_ERROR = 1;
+
+  private static final int EXIT_CODE_USAGE = 2;
+
+  /**
+   * Converts every record of a binary result file.
+   *
+   * @param binaryFile
+   *          The binary result file.
+   * @param outputFolder
+   *          The folder where the results are written.
+   * @param consolidated
+   *          Whether the results should be written into one XML and one text file.
+   * @return The number of converted records.
+   * @throws IOException
+   *           if the binary file cannot be read or it is not a binary result file.
+   */
+  public static int convert(final File binaryFile, final File outputFolder,
+      final boolean consolidated) throws IOException {
+
+    if (!outputFolder.exists() && !outputFolder.mkdirs()) {
+      throw new IOException("Cannot create output folder: " + outputFolder);
+    }
+
+    String baseName = binaryFile.getName();
+    int extensionIndex = baseName.lastIndexOf('.');
+    if (extensionIndex > 0) {
+      baseName = baseName.substring(0, extensionIndex);
+    }
+    XmlTestSuitesWriter xmlTestSuitesWriter = null;
+    TextResultLogWriter textResultLogWriter = null;
+    if (consolidated) {
+      xmlTestSuitesWriter = new XmlTestSuitesWriter(new File(outputFolder, baseName + ".xml"),
+          CONSOLIDATED_BUFFER_SIZE);
+      textResultLogWriter = new TextResultLogWriter(new File(outputFolder, baseName + ".txt"),
+          CONSOLIDATED_BUFFER_SIZE);
+    }
+
+    Map<String, Integer> fileNameUsages = new HashMap<>();
+    int recordCount = 0;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(binaryFile)))) {
+      if (in.readInt() != BinaryResultLogWriter.MAGIC) {
+        throw new IOException("Not a binary test result file: " + binaryFile);
+      }
+      byte[] record = readRecord(in, binaryFile);
+      while (record != null) {
+        DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+        String testId = TestClassResultCodec.readString(recordIn);
+        TestClassResult testClassResult = TestClassResultCodec.read(recordIn);
+
+        if (consolidated) {
+          xmlTestSuitesWriter.writeTestSuite(testClassResult, "", null);
+          textResultLogWriter.writeTestResult(testClassResult, testId, null);
+        } else {
+          String fileName = ResultUtil.generateFileNameWithoutExtension(
+              testClassResult.className, testId, false);
+          Integer usage = fileNameUsages.get(fileName);
+          fileNameUsages.put(fileName, (usage != null) ? usage + 1 : 1);
+          if (usage != null) {
+            fileName = fileName + "_" + usage;
+          }
+          ResultUtil.writeTextResultToFile(testClassResult, testId,
+              new File(outputFolder, fileName + ".txt"), false);
+          ResultUtil.writeXmlResultToFile(testClassResult,
+              new File(outputFolder, fileName + ".xml"), "", null);
+        }
+        recordCount++;
+        record = readRecord(in, binaryFile);
+      }
+    } finally {
+      if (consolidated) {
+        xmlTestSuitesWriter.close();
+        textResultLogWriter.close();
+      }
+    }
+    return recordCount;
+  }
+
+  /**
+   * Converts a binary result file from the command line.
+   *
+   * @param args
+   *          The binary file, the output folder and optionally the <code>-consolidated</code>
+   *          option.
+   */
+  public static void main(final String[] args) {
+    PrintStream stderr = System.err;
+    boolean validArgs = (args.length == 2)
+        || ((args.length == 3) && CONSOLIDATED_OPTION.equals(args[2]));
+    if (!validArgs) {
+      stderr.println("Usage: java -jar <testrunner.jar> <binaryFile> <outputFolder> ["
+          + CONSOLIDATED_OPTION + "]");
+      System.exit(EXIT_CODE_USAGE);
+      return;
+    }
+    try {
+      int recordCount = convert(new File(args[0]), new File(args[1]), args.length == 3);
+      System.out.println("Converted " + recordCount + " test class results");
+    } catch (IOException e) {
+      e.printStackTrace(stderr);
+      System.exit(EXIT_CODE_ERROR);
+    }
+  }
+
+  /**
+   * Reads the next record.
+   *
+   * @return The content of the record or <code>null</code> if there are no more complete
+   *         records.
+   */
+  private static byte[] readRecord(final DataInputStream in, final File binaryFile)
+      throws IOException {
+    int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    byte[] record = new byte[length];
+    try {
+      in.readFully(record);
+    } catch (EOFException e) {
+      System.err.println("The last record of " + binaryFile + " is incomplete. Ignoring it.");
+      return null;
+    }
+    return record;
+  }
+
+  private BinaryResultConverter() {
+  }
+}
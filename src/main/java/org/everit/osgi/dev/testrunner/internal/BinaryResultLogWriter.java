@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.osgi.dev.testrunner.engine.TestCaseResult;
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+
+/**
+ * Appends the results of test classes to a binary file. The file starts with {@link #MAGIC} and
+ * it contains a record for every test class. A record starts with the length of the rest of the
+ * record, followed by the id of the test and the result in the format of
+ * {@link TestClassResultCodec}. The file can be converted to the text and XML results with
+ * {@link BinaryResultConverter} after the run. The file is opened when the first result arrives
+ * and it is kept open until the writer is closed.
+ */
+class BinaryResultLogWriter {
+
+  /**
+   * The first four bytes of the binary result files.
+   */
+  static final int MAGIC = 0x454F5452;
+
+  private static final Logger LOGGER = Logger.getLogger(BinaryResultLogWriter.class.getName());
+
+  private final int bufferSize;
+
+  private boolean closed = false;
+
+  private final File file;
+
+  private DataOutputStream out;
+
+  /**
+   * Constructor.
+   *
+   * @param file
+   *          The file that the results are appended to.
+   * @param bufferSize
+   *          The size of the write buffer in bytes.
+   */
+  BinaryResultLogWriter(final File file, final int bufferSize) {
+    this.file = file;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Closes the file. Results that are appended after this call are ignored.
+   */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (out == null) {
+      return;
+    }
+    try {
+      out.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error during closing file " + file, e);
+    }
+  }
+
+  private void copyFileContent(final File fragmentFile) throws IOException {
+    byte[] buffer = new byte[bufferSize];
+    try (InputStream in = new FileInputStream(fragmentFile)) {
+      int length = in.read(buffer);
+      while (length >= 0) {
+        out.write(buffer, 0, length);
+        length = in.read(buffer);
+      }
+    }
+  }
+
+  /**
+   * Flushes the buffer, so the file contains every test class that was appended even if the JVM
+   * is killed.
+   */
+  synchronized void flush() {
+    if (closed || (out == null)) {
+      return;
+    }
+    try {
+      out.flush();
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error during flushing file " + file, e);
+    }
+  }
+
+  private void open() throws IOException {
+    File parentFolder = file.getParentFile();
+    if (!parentFolder.exists() && !parentFolder.mkdirs()) {
+      throw new IOException("Cannot create test result folder: " + parentFolder);
+    }
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+    boolean empty = channel.size() == 0;
+    out = new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(channel), bufferSize));
+    if (empty) {
+      out.writeInt(MAGIC);
+    }
+  }
+
+  /**
+   * Appends the record of a test class result to the file. The record might stay in the buffer
+   * until {@link #flush()} is called.
+   *
+   * @param testClassResult
+   *          The result of the test class.
+   * @param testId
+   *          The id of the test.
+   * @param testCaseFragmentFile
+   *          The file that contains the test cases that were reported one by one in the format
+   *          of {@link TestClassResultCodec#writeTestCase(TestCaseResult, java.io.DataOutput)} or
+   *          <code>null</code> if all test cases are in the test result.
+   * @param fragmentTestCaseCount
+   *          The number of test cases in the fragment file.
+   */
+  synchronized void writeTestResult(final TestClassResult testClassResult, final String testId,
+      final File testCaseFragmentFile, final int fragmentTestCaseCount) {
+    if (closed) {
+      LOGGER.warning("Result of test class " + testClassResult.className
+          + " is not written into the closed file " + file);
+      return;
+    }
+    try {
+      if (out == null) {
+        open();
+      }
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      DataOutputStream headerOut = new DataOutputStream(header);
+      TestClassResultCodec.writeString(testId, headerOut);
+      TestClassResultCodec.writeHeader(testClassResult,
+          testClassResult.testCaseResults.size() + fragmentTestCaseCount, headerOut);
+      for (TestCaseResult testCaseResult : testClassResult.testCaseResults) {
+        TestClassResultCodec.writeTestCase(testCaseResult, headerOut);
+      }
+      headerOut.flush();
+
+      long fragmentLength = (testCaseFragmentFile != null) ? testCaseFragmentFile.length() : 0;
+      out.writeInt((int) (header.size() + fragmentLength));
+      header.writeTo(out);
+      if (testCaseFragmentFile != null) {
+        copyFileContent(testCaseFragmentFile);
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error during writing the result of test class "
+          + testClassResult.className + " to file " + file, e);
+    }
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.osgi.dev.testrunner.blocking.AbstractShutdownBlocker;
+import org.everit.osgi.dev.testrunner.engine.TestCaseResult;
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+import org.everit.osgi.dev.testrunner.result.ResultSink;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+
+/**
+ * Tracks the {@link ResultSink} OSGi services and delivers the result of every test class to all
+ * of them. Every sink has its own thread and bounded queue, so a slow sink blocks neither the
+ * thread that publishes the results nor the other sinks. If the queue of a sink is full, the
+ * result is not delivered to that sink and a warning is logged, while the other sinks still get
+ * it. Every sink gets its own copy of the result, so a sink cannot see the modifications of
+ * another one. The framework is not stopped while there are results that are not delivered yet.
+ */
+class ResultSinkFanOut extends AbstractShutdownBlocker {
+
+  /**
+   * The thread and the queue of a tracked {@link ResultSink}.
+   */
+  private static class SinkDelivery {
+
+    /**
+     * The number of results that were not delivered to the sink as its queue was full.
+     */
+    final AtomicInteger droppedResultCount = new AtomicInteger();
+
+    final ThreadPoolExecutor executor;
+
+    final ResultSink resultSink;
+
+    SinkDelivery(final ResultSink resultSink, final ThreadPoolExecutor executor) {
+      this.resultSink = resultSink;
+      this.executor = executor;
+    }
+  }
+
+  /**
+   * Creates the thread of a sink when it is registered and delivers the queued results before the
+   * sink is released when it is unregistered.
+   */
+  private class SinkTrackerCustomizer
+      implements ServiceTrackerCustomizer<ResultSink, SinkDelivery> {
+
+    @Override
+    public SinkDelivery addingService(final ServiceReference<ResultSink> reference) {
+      ResultSink resultSink = bundleContext.getService(reference);
+      if (resultSink == null) {
+        return null;
+      }
+      String threadName = "eosgi-testrunner-result-sink-"
+          + reference.getProperty(Constants.SERVICE_ID);
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), (runnable) -> {
+            Thread thread = new Thread(runnable);
+            thread.setName(threadName);
+            return thread;
+          }, ResultSinkFanOut::rejectDelivery);
+      return new SinkDelivery(resultSink, executor);
+    }
+
+    @Override
+    public void modifiedService(final ServiceReference<ResultSink> reference,
+        final SinkDelivery sinkDelivery) {
+      // Nothing to do
+    }
+
+    @Override
+    public void removedService(final ServiceReference<ResultSink> reference,
+        final SinkDelivery sinkDelivery) {
+      sinkDelivery.executor.shutdown();
+      try {
+        if (!sinkDelivery.executor.awaitTermination(REMOVAL_TIMEOUT, TimeUnit.MILLISECONDS)) {
+          LOGGER.warning("Result sink " + reference + " did not process the queued results in "
+              + REMOVAL_TIMEOUT + " ms. The remaining results are not delivered.");
+          sinkDelivery.executor.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        sinkDelivery.executor.shutdownNow();
+      }
+      int droppedResultCount = sinkDelivery.droppedResultCount.get();
+      if (droppedResultCount > 0) {
+        LOGGER.warning("Result sink " + reference + " did not receive " + droppedResultCount
+            + " test results as its queue was full");
+      }
+      bundleContext.ungetService(reference);
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(ResultSinkFanOut.class.getName());
+
+  /**
+   * The number of results that can wait for a sink.
+   */
+  private static final int QUEUE_CAPACITY = 1024;
+
+  /**
+   * The time in milliseconds that the queued results of a sink are waited for when the sink is
+   * unregistered.
+   */
+  private static final long REMOVAL_TIMEOUT = 10000;
+
+  /**
+   * Creates a copy of a test class result that shares only the immutable parts, e.g. the
+   * failures, with the original one.
+   */
+  private static TestClassResult copyTestClassResult(final TestClassResult testClassResult) {
+    TestClassResult result = new TestClassResult();
+    result.className = testClassResult.className;
+    result.errorCount = testClassResult.errorCount;
+    result.failureCount = testClassResult.failureCount;
+    result.finishTime = testClassResult.finishTime;
+    result.ignoreCount = testClassResult.ignoreCount;
+    result.runCount = testClassResult.runCount;
+    result.startTime = testClassResult.startTime;
+    for (TestClassResult previousAttempt : testClassResult.previousAttempts) {
+      result.previousAttempts.add(copyTestClassResult(previousAttempt));
+    }
+    for (TestCaseResult testCaseResult : testClassResult.testCaseResults) {
+      TestCaseResult testCaseResultCopy = new TestCaseResult();
+      testCaseResultCopy.failure = testCaseResult.failure;
+      testCaseResultCopy.finishTime = testCaseResult.finishTime;
+      testCaseResultCopy.startTime = testCaseResult.startTime;
+      testCaseResultCopy.testMethodName = testCaseResult.testMethodName;
+      result.testCaseResults.add(testCaseResultCopy);
+    }
+    return result;
+  }
+
+  /**
+   * Called by the executor of a sink if its queue is full or the sink is unregistered. The
+   * delivery is rejected without waiting, so the thread that publishes the result is not blocked.
+   */
+  private static void rejectDelivery(final Runnable delivery,
+      final ThreadPoolExecutor executor) {
+    if (executor.isShutdown()) {
+      throw new RejectedExecutionException("Result sink is unregistered");
+    }
+    throw new RejectedExecutionException(
+        "The queue of the result sink is full with " + QUEUE_CAPACITY + " results");
+  }
+
+  private final BundleContext bundleContext;
+
+  private int pendingDeliveryCount = 0;
+
+  private ServiceTracker<ResultSink, SinkDelivery> resultSinkTracker;
+
+  /**
+   * Constructor.
+   *
+   * @param bundleContext
+   *          The context of the test runner bundle.
+   */
+  ResultSinkFanOut(final BundleContext bundleContext) {
+    this.bundleContext = bundleContext;
+  }
+
+  /**
+   * Waits until every result that was published before is delivered to the sinks.
+   */
+  synchronized void awaitPendingDeliveries() {
+    while (pendingDeliveryCount > 0) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOGGER.warning("Interrupted while waiting for " + pendingDeliveryCount
+            + " test results to be delivered to result sinks");
+        return;
+      }
+    }
+  }
+
+  /**
+   * Closes the tracker. The queued results are delivered to the sinks before the tracker releases
+   * them.
+   */
+  void close() {
+    resultSinkTracker.close();
+  }
+
+  private void deliver(final SinkDelivery sinkDelivery, final TestClassResult testClassResult,
+      final String testId) {
+    try {
+      sinkDelivery.resultSink.handleTestClassResult(testClassResult, testId);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Result sink " + sinkDelivery.resultSink
+          + " could not handle the result of test class " + testClassResult.className, e);
+    } finally {
+      finishDelivery();
+    }
+  }
+
+  private void finishDelivery() {
+    synchronized (this) {
+      pendingDeliveryCount--;
+      if (pendingDeliveryCount == 0) {
+        unblock();
+        notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void logBlockCauses(final StringBuilder sb) {
+    sb.append("  Test results waiting to be delivered to result sinks: ")
+        .append(pendingDeliveryCount).append("\n");
+  }
+
+  /**
+   * Opens the tracker of the {@link ResultSink} services.
+   */
+  void open() {
+    resultSinkTracker =
+        new ServiceTracker<>(bundleContext, ResultSink.class, new SinkTrackerCustomizer());
+    resultSinkTracker.open();
+  }
+
+  /**
+   * Queues a copy of the result of a test class for every tracked sink. Returns without waiting
+   * for the sinks. If the queue of a sink is full, the result is not delivered to that sink.
+   *
+   * @param testClassResult
+   *          The result of the test class.
+   * @param testId
+   *          The id of the test or <code>null</code> if the test does not have an id.
+   */
+  void publish(final TestClassResult testClassResult, final String testId) {
+    for (SinkDelivery sinkDelivery : resultSinkTracker.getTracked().values()) {
+      synchronized (this) {
+        pendingDeliveryCount++;
+        block();
+      }
+      TestClassResult testClassResultCopy = copyTestClassResult(testClassResult);
+      try {
+        sinkDelivery.executor.execute(() -> deliver(sinkDelivery, testClassResultCopy, testId));
+      } catch (RejectedExecutionException e) {
+        finishDelivery();
+        if (!sinkDelivery.executor.isShutdown()) {
+          sinkDelivery.droppedResultCount.incrementAndGet();
+        }
+        LOGGER.warning("Result of test class " + testClassResult.className
+            + " is not delivered to result sink " + sinkDelivery.resultSink + ": "
+            + e.getMessage());
+      }
+    }
+  }
+}
@@ -17,46 +17,52 @@ package org.everit.osgi.dev.testrunner.internal;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
 import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import java.util.regex.Pattern;
 
 import org.everit.osgi.dev.testrunner.TestRunnerConstants;
 import org.everit.osgi.dev.testrunner.engine.TestCaseResult;
 import org.everit.osgi.dev.testrunner.engine.TestClassResult;
 import org.osgi.framework.ServiceReference;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
 
 /**
  * Util class to help dumping test results into files or streams.
  */
 public final class ResultUtil {
 
+  /**
+   * The size of the buffers that are used to write result files and to copy the content of test
+   * case fragment files.
+   */
+  private static final int BUFFER_SIZE = 8192;
+
+  /**
+   * The line separator between the elements of XML results.
+   */
+  private static final String LINE_SEPARATOR = "\n";
+
   /**
    * The logger of the class.
    */
@@ -78,6 +84,13 @@ public final class ResultUtil {
    */
   private static final int SMALLEST_TWO_DIGIT_DECIMAL = 10;
 
+  /**
+   * Renders the stack traces of the failures. By default the stack traces are not folded or
+   * deduplicated.
+   */
+  private static volatile StackTraceRenderer stackTraceRenderer =
+      new StackTraceRenderer(Collections.<String> emptyList(), false);
+
   /**
    * Converting the time into String format.
    *
@@ -102,6 +115,41 @@ public final class ResultUtil {
     return sb.toString();
   }
 
+  /**
+   * Collects the failures of a test case from the previous attempts of a retried test class.
+   *
+   * @param previousAttempts
+   *          The results of the previous attempts.
+   * @param testMethodName
+   *          The name of the test case.
+   * @return The failures in the order of the attempts.
+   */
+  static List<Throwable> collectPreviousFailures(final List<TestClassResult> previousAttempts,
+      final String testMethodName) {
+    List<Throwable> result = new ArrayList<>();
+    for (TestClassResult previousAttempt : previousAttempts) {
+      for (TestCaseResult testCaseResult : previousAttempt.testCaseResults) {
+        if ((testCaseResult.failure != null)
+            && String.valueOf(testMethodName).equals(testCaseResult.testMethodName)) {
+          result.add(testCaseResult.failure);
+        }
+      }
+    }
+    return result;
+  }
+
+  private static void copyFileContent(final File file, final Writer writer) throws IOException {
+    try (Reader reader =
+        new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+      char[] buffer = new char[BUFFER_SIZE];
+      int length = reader.read(buffer);
+      while (length >= 0) {
+        writer.write(buffer, 0, length);
+        length = reader.read(buffer);
+      }
+    }
+  }
+
   private static void createParentDirectory(final File file) {
     File parentFolder = file.getParentFile();
     boolean folderCreationSuccessful = parentFolder.exists() || parentFolder.mkdirs();
@@ -111,6 +159,29 @@ public final class ResultUtil {
     }
   }
 
+  private static String createTestCountText(final TestClassResult testClassResult) {
+    return "Tests run: " + testClassResult.runCount + ", Failures: " + testClassResult.failureCount
+        + ", Errors: " + testClassResult.errorCount + ", Skipped: " + testClassResult.ignoreCount
+        + ", Time elapsed: "
+        + ResultUtil.convertTimeToString(testClassResult.finishTime - testClassResult.startTime)
+        + " sec" + ((testClassResult.failureCount > 0) ? " <<< FAILURE!" : "");
+  }
+
+  /**
+   * Creates the one line summary of a test class result that contains the name of the test class
+   * and the counts of the test cases.
+   *
+   * @param testClassResult
+   *          The result of the test class.
+   * @param testId
+   *          Id of the test.
+   * @return The summary without a line break.
+   */
+  static String createTextSummary(final TestClassResult testClassResult, final String testId) {
+    return "Test set: " + testClassResult.className + (testId != null ? " (" + testId + ")" : "")
+        + ", " + createTestCountText(testClassResult);
+  }
+
   /**
    * Dumping test results in text format.
    *
@@ -127,37 +198,136 @@ public final class ResultUtil {
   public static void dumpTextResult(final TestClassResult testClassResult, final String testId,
       final Writer writer)
       throws IOException {
+    dumpTextResult(testClassResult, testId, newWrittenStackTraces(), writer);
+  }
+
+  /**
+   * Dumping test results in text format. Stack traces that are in the passed map are written only
+   * as a reference, so the map can be shared with the test cases that are written after the result
+   * of the test class.
+   *
+   * @param testClassResult
+   *          The results of the test.
+   * @param testId
+   *          Id of the test.
+   * @param writtenStackTraces
+   *          The test method names by the stack traces that were already written or
+   *          <code>null</code> if the stack traces are not deduplicated. The stack traces written
+   *          by this call are added to the map.
+   * @param writer
+   *          The writer the test results will be written to.
+   * @throws IOException
+   *           if the writer does not work well.
+   */
+  static void dumpTextResult(final TestClassResult testClassResult, final String testId,
+      final Map<String, String> writtenStackTraces, final Writer writer) throws IOException {
     String testClassName = testClassResult.className;
     writer
         .write("-------------------------------------------------------------------------------\n");
     writer.write("Test set: " + testClassName + (testId != null ? " (" + testId + ")" : "") + "\n");
     writer
         .write("-------------------------------------------------------------------------------\n");
-    writer.write(
-        "Tests run: " + testClassResult.runCount + ", Failures: " + testClassResult.failureCount
-            + ", Errors: " + testClassResult.errorCount + ", Skipped: "
-            + testClassResult.ignoreCount
-            + ", Time elapsed: "
-            + ResultUtil.convertTimeToString(testClassResult.finishTime - testClassResult.startTime)
-            + " sec");
-    if (testClassResult.failureCount > 0) {
-      writer.write(" <<< FAILURE!");
-    }
+    writer.write(createTestCountText(testClassResult));
     writer.write("\n");
 
-    PrintWriter pw = new PrintWriter(writer);
+    int previousAttemptCount = testClassResult.previousAttempts.size();
+    if (previousAttemptCount > 0) {
+      if (hasFailure(testClassResult)) {
+        writer.write("Failed in all " + (previousAttemptCount + 1) + " attempts\n");
+      } else {
+        writer.write("Flaky: passed after " + previousAttemptCount + " failed attempt"
+            + ((previousAttemptCount > 1) ? "s" : "") + "\n");
+      }
+    }
+
     for (TestCaseResult testCaseResult : testClassResult.testCaseResults) {
-      if (testCaseResult.failure != null) {
-        Throwable failure = testCaseResult.failure;
-        writer.write(testCaseResult.testMethodName + "  Time elapsed: "
-            + ResultUtil.convertTimeToString(testCaseResult.finishTime - testCaseResult.startTime)
-            + " sec  <<< " + ((failure instanceof AssertionError) ? "FAILURE" : "ERROR") + "!"
-            + "\n");
-
-        failure.printStackTrace(pw);
+      dumpTextTestCaseResult(testCaseResult, writtenStackTraces, writer);
+    }
+  }
+
+  /**
+   * Dumping test results in text format together with the test cases that were written into a
+   * fragment file one by one while the test class was running.
+   *
+   * @param testClassResult
+   *          The results of the test.
+   * @param testId
+   *          Id of the test.
+   * @param testCaseFragmentFile
+   *          The file that contains the test cases in the format of
+   *          {@link #dumpTextTestCaseResult(TestCaseResult, Writer)} or <code>null</code> if all
+   *          test cases are in the test result.
+   * @param writer
+   *          The writer the test results will be written to.
+   * @throws IOException
+   *           if the writer does not work well or the fragment file cannot be read.
+   */
+  static void dumpTextResult(final TestClassResult testClassResult, final String testId,
+      final File testCaseFragmentFile, final Writer writer) throws IOException {
+    dumpTextResult(testClassResult, testId, writer);
+    if (testCaseFragmentFile != null) {
+      copyFileContent(testCaseFragmentFile, writer);
+    }
+  }
+
+  /**
+   * Dumping the result of a test case in text format. Only failed test cases are written.
+   *
+   * @param testCaseResult
+   *          The result of the test case.
+   * @param writer
+   *          The writer the test result will be written to.
+   * @throws IOException
+   *           if the writer does not work well.
+   */
+  public static void dumpTextTestCaseResult(final TestCaseResult testCaseResult,
+      final Writer writer) throws IOException {
+    dumpTextTestCaseResult(testCaseResult, null, writer);
+  }
+
+  /**
+   * Dumping the result of a test case in text format. Only failed test cases are written. If the
+   * stack trace of the failure was already written for another test case, only the first line of
+   * the stack trace and a reference to the other test case is written.
+   *
+   * @param testCaseResult
+   *          The result of the test case.
+   * @param writtenStackTraces
+   *          The test method names by the stack traces that were already written or
+   *          <code>null</code> if the stack traces are not deduplicated. The stack trace of the
+   *          failure is added to the map.
+   * @param writer
+   *          The writer the test result will be written to.
+   * @throws IOException
+   *           if the writer does not work well.
+   */
+  static void dumpTextTestCaseResult(final TestCaseResult testCaseResult,
+      final Map<String, String> writtenStackTraces, final Writer writer) throws IOException {
+    if (testCaseResult.failure == null) {
+      return;
+    }
+    Throwable failure = testCaseResult.failure;
+    writer.write(testCaseResult.testMethodName + "  Time elapsed: "
+        + ResultUtil.convertTimeToString(testCaseResult.finishTime - testCaseResult.startTime)
+        + " sec  <<< " + (isAssertionFailure(failure) ? "FAILURE" : "ERROR") + "!"
+        + "\n");
+
+    String stackTrace = renderStackTrace(failure);
+    String sameStackTraceTestMethodName = null;
+    if (writtenStackTraces != null) {
+      sameStackTraceTestMethodName = writtenStackTraces.get(stackTrace);
+      if (sameStackTraceTestMethodName == null) {
+        writtenStackTraces.put(stackTrace, testCaseResult.testMethodName);
       }
     }
-    pw.flush();
+    if (sameStackTraceTestMethodName != null) {
+      int firstLineEnd = stackTrace.indexOf('\n');
+      writer.write((firstLineEnd >= 0) ? stackTrace.substring(0, firstLineEnd + 1)
+          : (stackTrace + "\n"));
+      writer.write("\t... same stack trace as " + sameStackTraceTestMethodName + "\n");
+    } else {
+      writer.write(stackTrace);
+    }
   }
 
   /**
@@ -174,17 +344,9 @@ public final class ResultUtil {
       final Writer writer) {
 
     try {
-      Node testSuiteElement = ResultUtil.generateTestSuiteNode(testClassResult);
-      TransformerFactory tf = TransformerFactory.newInstance();
-      Transformer transformer = tf.newTransformer();
-      Source source = new DOMSource(testSuiteElement);
-      javax.xml.transform.Result xmlResult = new StreamResult(writer);
-      transformer.transform(source, xmlResult);
+      writeXmlTestSuite(testClassResult, serializeXmlProperties(System.getProperties(), null),
+          null, writer);
       writer.flush();
-    } catch (TransformerConfigurationException e) {
-      LOGGER.log(Level.SEVERE, "Error during dumping test results in XML format", e);
-    } catch (TransformerException e) {
-      LOGGER.log(Level.SEVERE, "Error during dumping test results in XML format", e);
     } catch (IOException e) {
       LOGGER.log(Level.SEVERE, "Error during dumping test results in XML format", e);
     }
@@ -217,71 +379,6 @@ public final class ResultUtil {
     return sb.toString();
   }
 
-  /**
-   * Generating a testSuite XML node from a test result.
-   *
-   * @param testClassResult
-   *          The result of the test.
-   * @return An XML node representing the testSuite.
-   */
-  public static Node generateTestSuiteNode(final TestClassResult testClassResult) {
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    try {
-      DocumentBuilder db = dbf.newDocumentBuilder();
-      Document document = db.newDocument();
-      Element testSuiteElement = document.createElement("testsuite");
-      document.appendChild(testSuiteElement);
-
-      testSuiteElement.setAttribute("failures", String.valueOf(testClassResult.failureCount));
-      testSuiteElement.setAttribute("time",
-          ResultUtil.convertTimeToString(testClassResult.finishTime - testClassResult.startTime));
-      testSuiteElement.setAttribute("errors", String.valueOf(testClassResult.errorCount));
-      testSuiteElement.setAttribute("skipped", String.valueOf(testClassResult.ignoreCount));
-      testSuiteElement.setAttribute("tests", String.valueOf(testClassResult.runCount));
-      testSuiteElement.setAttribute("name", testClassResult.className);
-
-      Element propertiesElement = document.createElement("properties");
-      testSuiteElement.appendChild(propertiesElement);
-      Set<Entry<Object, Object>> propertyEntrySet = System.getProperties().entrySet();
-      for (Entry<Object, Object> propertyEntry : propertyEntrySet) {
-        Element propertyElement = document.createElement("property");
-        propertiesElement.appendChild(propertyElement);
-        propertyElement.setAttribute("name", String.valueOf(propertyEntry.getKey()));
-        propertyElement.setAttribute("value", String.valueOf(propertyEntry.getValue()));
-      }
-
-      for (TestCaseResult testCaseResult : testClassResult.testCaseResults) {
-        Element testCaseElement = document.createElement("testcase");
-        testSuiteElement.appendChild(testCaseElement);
-        testCaseElement.setAttribute("time",
-            ResultUtil.convertTimeToString(testCaseResult.finishTime - testCaseResult.startTime));
-        testCaseElement.setAttribute("classname", testClassResult.className);
-        testCaseElement.setAttribute("name", testCaseResult.testMethodName);
-        if (testCaseResult.failure != null) {
-          Throwable failure = testCaseResult.failure;
-          Element errorElement = null;
-          if (failure instanceof AssertionError) {
-            errorElement = document.createElement("failure");
-          } else {
-            errorElement = document.createElement("error");
-          }
-          testCaseElement.appendChild(errorElement);
-          errorElement.setAttribute("message", failure.getMessage());
-
-          errorElement.setAttribute("type", failure.getClass().getName());
-          StringWriter sw = new StringWriter();
-          PrintWriter pw = new PrintWriter(sw);
-          failure.printStackTrace(pw);
-          errorElement.setTextContent(sw.toString());
-        }
-      }
-      return testSuiteElement;
-    } catch (ParserConfigurationException e) {
-      LOGGER.log(Level.SEVERE, "Error generating test suite node", e);
-    }
-    return null;
-  }
-
   /**
    * Resolves the id of the test from the {@link ServiceReference} instance by checking the
    * {@link TestRunnerConstants#SERVICE_PROPERTY_TEST_ID} service property.
@@ -299,6 +396,173 @@ public final class ResultUtil {
     }
   }
 
+  /**
+   * Checks whether there was a failure or an error during running the test class.
+   *
+   * @param testClassResult
+   *          The result of the test class.
+   * @return <code>true</code> if the failure or error count of the result is not zero.
+   */
+  public static boolean hasFailure(final TestClassResult testClassResult) {
+    return (testClassResult.failureCount > 0) || (testClassResult.errorCount > 0);
+  }
+
+  /**
+   * Checks whether a failure is an assertion failure or an unexpected error.
+   *
+   * @param failure
+   *          The failure.
+   * @return <code>true</code> if the failure is an {@link AssertionError} or it was read from the
+   *         binary format and the original failure was an {@link AssertionError}.
+   */
+  static boolean isAssertionFailure(final Throwable failure) {
+    if (failure instanceof TestClassResultCodec.RecordedFailure) {
+      return ((TestClassResultCodec.RecordedFailure) failure).assertion;
+    }
+    return failure instanceof AssertionError;
+  }
+
+  /**
+   * Creates the map that collects the stack traces that were written into a text result if the
+   * stack traces should be deduplicated.
+   *
+   * @return An empty map or <code>null</code> if the stack traces are not deduplicated.
+   */
+  static Map<String, String> newWrittenStackTraces() {
+    return stackTraceRenderer.isDeduplication() ? new HashMap<String, String>() : null;
+  }
+
+  private static Writer openBufferedFileWriter(final File file) throws IOException {
+    return openBufferedFileWriter(file, BUFFER_SIZE);
+  }
+
+  /**
+   * Opens a buffered writer that writes to the file via a {@link FileChannel} with UTF-8 encoding.
+   * The file is created or truncated.
+   *
+   * @param file
+   *          The file to write to.
+   * @param bufferSize
+   *          The size of the buffer in characters.
+   * @return The writer.
+   * @throws IOException
+   *           if the file cannot be opened.
+   */
+  static Writer openBufferedFileWriter(final File file, final int bufferSize)
+      throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    return new BufferedWriter(
+        Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1), bufferSize);
+  }
+
+  /**
+   * Renders the stack trace of a failure in the format of {@link Throwable#printStackTrace()} with
+   * the {@link StackTraceRenderer} that is set by
+   * {@link #setStackTraceRenderer(StackTraceRenderer)}. Every failure is rendered only once.
+   *
+   * @param throwable
+   *          The failure.
+   * @return The rendered stack trace.
+   */
+  static String renderStackTrace(final Throwable throwable) {
+    return stackTraceRenderer.render(throwable);
+  }
+
+  /**
+   * Resolves the type of a failure that is written into the results. This is the name of the
+   * class of the failure or the original type if the failure was read from the binary format.
+   *
+   * @param failure
+   *          The failure.
+   * @return The type of the failure.
+   */
+  static String resolveFailureType(final Throwable failure) {
+    if (failure instanceof TestClassResultCodec.RecordedFailure) {
+      return ((TestClassResultCodec.RecordedFailure) failure).type;
+    }
+    return failure.getClass().getName();
+  }
+
+  /**
+   * Resolves the name of the element of a failure from a previous attempt in the format of the
+   * Maven Surefire plugin. If the test case passed in the last attempt, the failure is flaky,
+   * otherwise it is a rerun failure.
+   */
+  private static String resolvePreviousFailureElementName(final TestCaseResult testCaseResult,
+      final Throwable previousFailure) {
+    return ((testCaseResult.failure == null) ? "flaky" : "rerun")
+        + (isAssertionFailure(previousFailure) ? "Failure" : "Error");
+  }
+  /**
+   * Resolves the reference that replaces a character in the XML results.
+   *
+   * @return The entity or character reference or <code>null</code> if the character is written
+   *         as it is.
+   */
+  private static String resolveXmlReference(final char c, final boolean attributeValue) {
+    switch (c) {
+      case '&':
+        return "&amp;";
+      case '<':
+        return "&lt;";
+      case '>':
+        return "&gt;";
+      case '"':
+        return attributeValue ? "&quot;" : null;
+      case '\n':
+        return attributeValue ? "&#10;" : null;
+      case '\r':
+        return attributeValue ? "&#13;" : null;
+      case '\t':
+        return attributeValue ? "&#9;" : null;
+      default:
+        return null;
+    }
+  }
+
+
+  /**
+   * Serializes properties into property elements of a testsuite. The result can be written into
+   * any number of testsuites without serializing the properties again.
+   *
+   * @param properties
+   *          The properties to serialize.
+   * @param keyFilter
+   *          The pattern that the keys of the serialized properties must match or
+   *          <code>null</code> if all properties are serialized.
+   * @return The property elements, each followed by a line break.
+   */
+  public static String serializeXmlProperties(final Map<?, ?> properties,
+      final Pattern keyFilter) {
+    StringWriter sw = new StringWriter();
+    try {
+      for (Entry<?, ?> propertyEntry : properties.entrySet()) {
+        String key = String.valueOf(propertyEntry.getKey());
+        if ((keyFilter == null) || keyFilter.matcher(key).matches()) {
+          sw.write("<property");
+          writeXmlAttribute("name", key, sw);
+          writeXmlAttribute("value", String.valueOf(propertyEntry.getValue()), sw);
+          sw.write("/>");
+          sw.write(LINE_SEPARATOR);
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error during serializing properties in XML format", e);
+    }
+    return sw.toString();
+  }
+
+  /**
+   * Sets the renderer of the stack traces that are written into the results.
+   *
+   * @param renderer
+   *          The renderer.
+   */
+  static void setStackTraceRenderer(final StackTraceRenderer renderer) {
+    stackTraceRenderer = renderer;
+  }
+
   /**
    * Write the test results into a text file.
    *
@@ -329,44 +593,306 @@ public final class ResultUtil {
   }
 
   /**
-   * Writing the test result in XML format to a file.
+   * Write the test results into a text file together with test cases that were written into a
+   * fragment file one by one while the test class was running.
    *
+   * @param testClassResult
+   *          The test results.
    * @param testId
-   *          Id of the test.
+   *          The if of the test.
+   * @param file
+   *          The file to write to.
+   * @param append
+   *          Whether to append the file or overwrite it.
+   * @param testCaseFragmentFile
+   *          The file that contains the test cases in the format of
+   *          {@link #dumpTextTestCaseResult(TestCaseResult, Writer)}.
+   * @throws IOException
+   *           if the file cannot be written.
+   */
+  public static void writeTextResultToFile(final TestClassResult testClassResult,
+      final String testId, final File file, final boolean append,
+      final File testCaseFragmentFile) throws IOException {
+    boolean existed = file.exists();
+    FileOutputStream fout = new FileOutputStream(file, append);
+
+    try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fout, "UTF8"))) {
+      if (existed && append) {
+        bw.write("\n\n");
+      }
+      dumpTextResult(testClassResult, testId, testCaseFragmentFile, bw);
+    }
+  }
+
+  /**
+   * Writes a text into a file with UTF-8 encoding.
+   *
+   * @param text
+   *          The text to write.
+   * @param file
+   *          The file to write to. If it exists, it is overwritten.
+   * @throws IOException
+   *           if the file cannot be written.
+   */
+  public static void writeTextToFile(final String text, final File file) throws IOException {
+    createParentDirectory(file);
+    try (BufferedWriter bw =
+        new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF8"))) {
+      bw.write(text);
+    }
+  }
+
+  /**
+   * Writes an attribute into the start tag that is being written. Line breaks and tabs in the
+   * value are escaped as character references the same way as the former DOM based serialization
+   * did. Otherwise they would be normalized to spaces by the XML parsers that read the result.
+   * The attributes of an element are written in alphabetical order for the same reason.
+   */
+  private static void writeXmlAttribute(final String name, final String value,
+      final Writer writer) throws IOException {
+
+    writer.write(' ');
+    writer.write(name);
+    writer.write("=\"");
+    writeXmlEscaped(value, true, writer);
+    writer.write('"');
+  }
+
+  /**
+   * Writes the XML declaration of a result file followed by a line break.
+   *
+   * @param writer
+   *          The writer of the result file.
+   * @throws IOException
+   *           if the declaration cannot be written.
+   */
+  static void writeXmlDeclaration(final Writer writer) throws IOException {
+    writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    writer.write(LINE_SEPARATOR);
+  }
+
+  private static void writeXmlEndTag(final String elementName, final Writer writer)
+      throws IOException {
+    writer.write("</");
+    writer.write(elementName);
+    writer.write('>');
+  }
+
+  /**
+   * Writes a text with the markup characters replaced by entity references. In attribute values
+   * the quotation mark and the whitespace characters that XML parsers normalize are escaped, too.
+   * The characters between the escaped ones are written in one call.
+   */
+  private static void writeXmlEscaped(final String text, final boolean attributeValue,
+      final Writer writer) throws IOException {
+
+    int start = 0;
+    for (int i = 0, n = text.length(); i < n; i++) {
+      String reference = resolveXmlReference(text.charAt(i), attributeValue);
+      if (reference != null) {
+        writer.write(text, start, i - start);
+        writer.write(reference);
+        start = i + 1;
+      }
+    }
+    writer.write(text, start, text.length() - start);
+  }
+
+  /**
+   * Writes the start tag of an element that describes a failure with the message and the type of
+   * the failure as attributes.
+   */
+  private static void writeXmlFailureStartTag(final String elementName, final Throwable failure,
+      final Writer writer) throws IOException {
+
+    writer.write('<');
+    writer.write(elementName);
+    if (failure.getMessage() != null) {
+      writeXmlAttribute("message", failure.getMessage(), writer);
+    }
+    writeXmlAttribute("type", resolveFailureType(failure), writer);
+    writer.write('>');
+  }
+
+  /**
+   * Writing the test result in XML format to a file together with test cases that were written
+   * into a fragment file one by one while the test class was running.
+   *
    * @param testClassResult
    *          The result of test.
    * @param file
-   *          The file where test results should be written.
-   * @param append
-   *          Whether to append or rewrite the test results to the file.
+   *          The file where test results should be written. If it exists, it is overwritten.
+   * @param propertiesXml
+   *          The property elements of the testsuite, serialized by
+   *          {@link #serializeXmlProperties(Map, Pattern)}.
+   * @param testCaseFragmentFile
+   *          The file that contains the testcase elements written by
+   *          {@link #writeXmlTestCaseResult(String, TestCaseResult, List, Writer)} or
+   *          <code>null</code> if all test cases are in the test result.
    */
   public static void writeXmlResultToFile(final TestClassResult testClassResult, final File file,
-      final String testId, final boolean append) {
+      final String propertiesXml, final File testCaseFragmentFile) {
     createParentDirectory(file);
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    try {
-      DocumentBuilder db = dbf.newDocumentBuilder();
-      Document document = null;
-      if (file.exists() && append) {
-        document = db.parse(file);
-      } else {
-        document = db.newDocument();
-      }
-      Node node = document.adoptNode(ResultUtil.generateTestSuiteNode(testClassResult));
-      document.appendChild(node);
-
-      TransformerFactory tf = TransformerFactory.newInstance();
-      Transformer transformer = tf.newTransformer();
-      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-      transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-      Source source = new DOMSource(node);
-      javax.xml.transform.Result xmlResult = new StreamResult(file);
-      transformer.transform(source, xmlResult);
-    } catch (ParserConfigurationException | IOException | TransformerException | SAXException e) {
+    try (Writer writer = openBufferedFileWriter(file)) {
+      writeXmlTestSuite(testClassResult, propertiesXml, testCaseFragmentFile, writer);
+    } catch (IOException e) {
       LOGGER.log(Level.SEVERE, "Error during dumping test results in XML format", e);
     }
   }
 
+  /**
+   * Writes a testcase element with the result of a test case.
+   *
+   * @param className
+   *          The name of the test class.
+   * @param testCaseResult
+   *          The result of the test case.
+   * @param previousFailures
+   *          The failures of the test case in the previous attempts if the test class was retried.
+   * @param writer
+   *          The writer that the element is written to.
+   * @throws IOException
+   *           if the element cannot be written.
+   */
+  public static void writeXmlTestCaseResult(final String className,
+      final TestCaseResult testCaseResult, final List<Throwable> previousFailures,
+      final Writer writer) throws IOException {
+
+    writer.write("<testcase");
+    writeXmlAttribute("classname", className, writer);
+    writeXmlAttribute("name", testCaseResult.testMethodName, writer);
+    writeXmlAttribute("time",
+        ResultUtil.convertTimeToString(testCaseResult.finishTime - testCaseResult.startTime),
+        writer);
+
+    Throwable failure = testCaseResult.failure;
+    if ((failure == null) && previousFailures.isEmpty()) {
+      writer.write("/>");
+      writer.write(LINE_SEPARATOR);
+      return;
+    }
+    writer.write('>');
+
+    if (failure != null) {
+      String elementName = isAssertionFailure(failure) ? "failure" : "error";
+      writeXmlFailureStartTag(elementName, failure, writer);
+      writeXmlEscaped(renderStackTrace(failure), false, writer);
+      writeXmlEndTag(elementName, writer);
+    }
+
+    for (Throwable previousFailure : previousFailures) {
+      String elementName = resolvePreviousFailureElementName(testCaseResult, previousFailure);
+      writeXmlFailureStartTag(elementName, previousFailure, writer);
+      writer.write("<stackTrace>");
+      writeXmlEscaped(renderStackTrace(previousFailure), false, writer);
+      writeXmlEndTag("stackTrace", writer);
+      writeXmlEndTag(elementName, writer);
+    }
+
+    writeXmlEndTag("testcase", writer);
+    writer.write(LINE_SEPARATOR);
+  }
+
+  /**
+   * Writes an XML document with the testsuite element of a test class result. The elements are
+   * written directly to the writer without building a document in memory.
+   */
+  private static void writeXmlTestSuite(final TestClassResult testClassResult,
+      final String propertiesXml, final File testCaseFragmentFile, final Writer writer)
+      throws IOException {
+
+    writeXmlDeclaration(writer);
+    writeXmlTestSuiteElement(testClassResult, propertiesXml, testCaseFragmentFile, writer);
+  }
+
+  /**
+   * Writes the testsuite element of a test class result followed by a line break.
+   *
+   * @param testClassResult
+   *          The result of the test class.
+   * @param propertiesXml
+   *          The property elements of the testsuite, serialized by
+   *          {@link #serializeXmlProperties(Map, Pattern)}.
+   * @param testCaseFragmentFile
+   *          The file that contains the testcase elements that were reported one by one or
+   *          <code>null</code> if all test cases are in the test result.
+   * @param writer
+   *          The writer that the element is written to.
+   * @throws IOException
+   *           if the element cannot be written or the fragment file cannot be copied.
+   */
+  static void writeXmlTestSuiteElement(final TestClassResult testClassResult,
+      final String propertiesXml, final File testCaseFragmentFile, final Writer writer)
+      throws IOException {
+
+    writeXmlTestSuiteStart(testClassResult, propertiesXml, writer);
+    if (testCaseFragmentFile != null) {
+      copyFileContent(testCaseFragmentFile, writer);
+    }
+    writeXmlEndTag("testsuite", writer);
+    writer.write(LINE_SEPARATOR);
+  }
+
+  /**
+   * Writes the testsuite element of a test class result followed by a line break.
+   *
+   * @param testClassResult
+   *          The result of the test class.
+   * @param propertiesXml
+   *          The property elements of the testsuite, serialized by
+   *          {@link #serializeXmlProperties(Map, Pattern)}.
+   * @param testCaseFragment
+   *          The testcase elements that were reported one by one and kept in memory or
+   *          <code>null</code> if all test cases are in the test result.
+   * @param writer
+   *          The writer that the element is written to.
+   * @throws IOException
+   *           if the element cannot be written.
+   */
+  static void writeXmlTestSuiteElement(final TestClassResult testClassResult,
+      final String propertiesXml, final String testCaseFragment, final Writer writer)
+      throws IOException {
+
+    writeXmlTestSuiteStart(testClassResult, propertiesXml, writer);
+    if (testCaseFragment != null) {
+      writer.write(testCaseFragment);
+    }
+    writeXmlEndTag("testsuite", writer);
+    writer.write(LINE_SEPARATOR);
+  }
+
+  /**
+   * Writes the start tag, the properties and the test cases of a testsuite element. The test cases
+   * that were reported one by one and the end tag are written by the caller.
+   */
+  private static void writeXmlTestSuiteStart(final TestClassResult testClassResult,
+      final String propertiesXml, final Writer writer) throws IOException {
+
+    writer.write("<testsuite");
+    writeXmlAttribute("errors", String.valueOf(testClassResult.errorCount), writer);
+    writeXmlAttribute("failures", String.valueOf(testClassResult.failureCount), writer);
+    writeXmlAttribute("name", testClassResult.className, writer);
+    writeXmlAttribute("skipped", String.valueOf(testClassResult.ignoreCount), writer);
+    writeXmlAttribute("tests", String.valueOf(testClassResult.runCount), writer);
+    writeXmlAttribute("time",
+        ResultUtil.convertTimeToString(testClassResult.finishTime - testClassResult.startTime),
+        writer);
+    writer.write('>');
+    writer.write(LINE_SEPARATOR);
+
+    writer.write("<properties>");
+    writer.write(LINE_SEPARATOR);
+    writer.write(propertiesXml);
+    writeXmlEndTag("properties", writer);
+    writer.write(LINE_SEPARATOR);
+
+    for (TestCaseResult testCaseResult : testClassResult.testCaseResults) {
+      List<Throwable> previousFailures =
+          collectPreviousFailures(testClassResult.previousAttempts, testCaseResult.testMethodName);
+      writeXmlTestCaseResult(testClassResult.className, testCaseResult, previousFailures, writer);
+    }
+  }
+
   /**
    * Private constructor for Util class.
    */
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Renders the stack traces of failures in the format of {@link Throwable#printStackTrace()}. Every
+ * failure is rendered only once, the result is cached until the failure is garbage collected, so
+ * the text, XML and log outputs share the same string. Consecutive frames of the framework, the
+ * reflection API and the test runner can be folded into one line, as they are the same in every
+ * failure and they do not help to find the cause.
+ */
+class StackTraceRenderer {
+
+  /**
+   * The prefixes of the class names whose frames are folded by default.
+   */
+  static final List<String> DEFAULT_FOLDED_PACKAGES = Collections.unmodifiableList(Arrays.asList(
+      "org.apache.felix.", "org.eclipse.osgi.", "org.osgi.", "java.lang.reflect.",
+      "sun.reflect.", "jdk.internal.reflect.", "java.util.concurrent.",
+      "org.everit.osgi.dev.testrunner."));
+
+  /**
+   * The minimum number of consecutive frames that are folded into one line.
+   */
+  private static final int MIN_FOLDED_FRAME_COUNT = 2;
+
+  private final boolean deduplication;
+
+  private final List<String> foldedPackages;
+
+  private final Map<Throwable, String> renderedStackTraces = new WeakHashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param foldedPackages
+   *          The prefixes of the class names whose consecutive frames are folded into one line.
+   *          If empty, the stack traces are not folded.
+   * @param deduplication
+   *          Whether a stack trace that is the same as the one of a previous test case of the same
+   *          test class should be replaced with a reference in the text results.
+   */
+  StackTraceRenderer(final List<String> foldedPackages, final boolean deduplication) {
+    this.foldedPackages = new ArrayList<>(foldedPackages);
+    this.deduplication = deduplication;
+  }
+
+  private String fold(final String stackTrace) {
+    String[] lines = stackTrace.split("\r?\n", -1);
+    StringBuilder sb = new StringBuilder(stackTrace.length());
+    int lineIndex = 0;
+    while (lineIndex < lines.length) {
+      int foldedLineCount = 0;
+      while (((lineIndex + foldedLineCount) < lines.length)
+          && isFoldedFrame(lines[lineIndex + foldedLineCount])) {
+        foldedLineCount++;
+      }
+      if (foldedLineCount >= MIN_FOLDED_FRAME_COUNT) {
+        String line = lines[lineIndex];
+        sb.append(line, 0, line.indexOf("at ")).append("... ").append(foldedLineCount)
+            .append(" framework frames folded\n");
+        lineIndex += foldedLineCount;
+      } else {
+        sb.append(lines[lineIndex]);
+        if (lineIndex < (lines.length - 1)) {
+          sb.append('\n');
+        }
+        lineIndex++;
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Whether identical stack traces should be replaced with a reference in the text results.
+   *
+   * @return <code>true</code> if the stack traces are deduplicated.
+   */
+  boolean isDeduplication() {
+    return deduplication;
+  }
+
+  private boolean isFoldedFrame(final String line) {
+    String trimmedLine = line.trim();
+    if (!trimmedLine.startsWith("at ")) {
+      return false;
+    }
+    int sourceIndex = trimmedLine.indexOf('(');
+    String frame = (sourceIndex >= 0) ? trimmedLine.substring(3, sourceIndex)
+        : trimmedLine.substring(3);
+    String className = frame.substring(frame.lastIndexOf('/') + 1);
+    for (String foldedPackage : foldedPackages) {
+      if (className.startsWith(foldedPackage)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Renders the stack trace of a failure or returns the cached result if the failure was already
+   * rendered.
+   *
+   * @param throwable
+   *          The failure.
+   * @return The rendered stack trace, with folded frames if folding is enabled.
+   */
+  String render(final Throwable throwable) {
+    synchronized (renderedStackTraces) {
+      String renderedStackTrace = renderedStackTraces.get(throwable);
+      if (renderedStackTrace != null) {
+        return renderedStackTrace;
+      }
+    }
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    throwable.printStackTrace(pw);
+    pw.flush();
+    String renderedStackTrace = sw.toString();
+    if (!foldedPackages.isEmpty()) {
+      renderedStackTrace = fold(renderedStackTrace);
+    }
+    synchronized (renderedStackTraces) {
+      renderedStackTraces.put(throwable, renderedStackTrace);
+    }
+    return renderedStackTrace;
+  }
+}
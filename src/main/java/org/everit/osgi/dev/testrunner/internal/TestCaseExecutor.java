@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link Executor} that is passed to a test engine to run the test cases of one test class in
+ * parallel. A task is handed to the worker pool of the test runner only if the test class has not
+ * reached its own parallelism and there is a free thread in the method-level budget that is shared
+ * by all running test classes. Otherwise the task runs on the calling thread, so the total number
+ * of test threads never exceeds the configured maximum and the engine still makes progress.
+ */
+class TestCaseExecutor implements Executor {
+
+  private final AtomicInteger inFlightTaskCount = new AtomicInteger();
+
+  private final int maxInFlightTaskCount;
+
+  private final Semaphore sharedThreadPermits;
+
+  private final ExecutorService workerPool;
+
+  /**
+   * Constructor.
+   *
+   * @param workerPool
+   *          The pool that runs the tasks that are not run on the calling thread.
+   * @param sharedThreadPermits
+   *          The permits of the extra threads that all test classes share.
+   * @param parallelism
+   *          The number of test cases of the test class that can run at the same time including
+   *          the thread of the test class.
+   */
+  TestCaseExecutor(final ExecutorService workerPool, final Semaphore sharedThreadPermits,
+      final int parallelism) {
+    this.workerPool = workerPool;
+    this.sharedThreadPermits = sharedThreadPermits;
+    this.maxInFlightTaskCount = parallelism - 1;
+  }
+
+  @Override
+  public void execute(final Runnable command) {
+    if (!tryReserveThread()) {
+      command.run();
+      return;
+    }
+    try {
+      workerPool.execute(() -> {
+        try {
+          command.run();
+        } finally {
+          releaseThread();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      releaseThread();
+      command.run();
+    }
+  }
+
+  private void releaseThread() {
+    sharedThreadPermits.release();
+    inFlightTaskCount.decrementAndGet();
+  }
+
+  private boolean tryReserveThread() {
+    if (inFlightTaskCount.incrementAndGet() > maxInFlightTaskCount) {
+      inFlightTaskCount.decrementAndGet();
+      return false;
+    }
+    if (!sharedThreadPermits.tryAcquire()) {
+      inFlightTaskCount.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.everit.osgi.dev.testrunner.engine.TestCaseListener;
+import org.everit.osgi.dev.testrunner.engine.TestCaseResult;
+
+/**
+ * Forwards the test case events of the test objects that are passed to a test engine in one call
+ * to their {@link TestCaseSpool}s.
+ */
+class TestCaseListenerImpl implements TestCaseListener {
+
+  private static final Logger LOGGER = Logger.getLogger(TestCaseListenerImpl.class.getName());
+
+  private final Map<Object, TestCaseSpool> testCaseSpoolsByTestObject = new IdentityHashMap<>();
+
+  /**
+   * Registers the spool of a test object. Must be called before the listener is passed to the
+   * test engine.
+   *
+   * @param testObject
+   *          The test object that is passed to the test engine.
+   * @param testCaseSpool
+   *          The spool of the test object.
+   */
+  void addTestObject(final Object testObject, final TestCaseSpool testCaseSpool) {
+    testCaseSpoolsByTestObject.put(testObject, testCaseSpool);
+  }
+
+  private TestCaseSpool getTestCaseSpool(final Object testObject, final String className) {
+    TestCaseSpool testCaseSpool = testCaseSpoolsByTestObject.get(testObject);
+    if (testCaseSpool == null) {
+      LOGGER.warning("Test case event of class " + className
+          + " is received for an unknown test object. Ignoring it.");
+    }
+    return testCaseSpool;
+  }
+
+  @Override
+  public void testCaseFinished(final Object testObject, final String className,
+      final TestCaseResult testCaseResult) {
+    TestCaseSpool testCaseSpool = getTestCaseSpool(testObject, className);
+    if (testCaseSpool != null) {
+      testCaseSpool.testCaseFinished(className, testCaseResult);
+    }
+  }
+
+  @Override
+  public void testCaseStarted(final Object testObject, final String className,
+      final String testMethodName) {
+    TestCaseSpool testCaseSpool = getTestCaseSpool(testObject, className);
+    if (testCaseSpool != null) {
+      testCaseSpool.testCaseStarted(className, testMethodName);
+    }
+  }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.osgi.dev.testrunner.engine.TestCaseResult;
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+
+/**
+ * Writes the results of the test cases of a test class into fragment files as soon as the test
+ * engine reports them, so they do not have to be kept in memory until the test class finishes. The
+ * fragments are merged into the result files of the test class when its result is dumped. If the
+ * results are appended to the files of the run, the fragments in that format are kept in memory
+ * instead, so no file is created and deleted for every test class.
+ */
+class TestCaseSpool {
+
+  private static final Logger LOGGER = Logger.getLogger(TestCaseSpool.class.getName());
+
+  /**
+   * Whether the test cases are written only into a binary fragment file.
+   */
+  private final boolean binary;
+
+  private File binaryFragmentFile;
+
+  private DataOutputStream binaryFragmentOutput;
+
+  private boolean closed = false;
+
+  /**
+   * The reported test cases that failed. They are kept in memory even if they are written into
+   * fragment files, so they can be logged together with the result of the test class.
+   */
+  private final List<TestCaseResult> failedTestCaseResults = new ArrayList<>();
+
+  private String fileNameWithoutExtension;
+
+  private final List<TestClassResult> previousAttempts;
+
+  private final File resultFolder;
+
+  private int testCaseCount = 0;
+
+  private final String testId;
+
+  /**
+   * The text fragment if it is kept in memory, otherwise <code>null</code>.
+   */
+  private StringWriter textFragmentBuffer;
+
+  private File textFragmentFile;
+
+  /**
+   * Whether the text fragment is kept in memory instead of a file.
+   */
+  private final boolean textFragmentInMemory;
+
+  private Writer textFragmentWriter;
+
+  /**
+   * The stack traces that were written into the text fragment file or <code>null</code> if the
+   * stack traces are not deduplicated.
+   */
+  private final Map<String, String> writtenStackTraces = ResultUtil.newWrittenStackTraces();
+
+  private File xmlFragmentFile;
+
+  /**
+   * The XML fragment if it is kept in memory, otherwise <code>null</code>.
+   */
+  private StringWriter xmlFragmentBuffer;
+
+  /**
+   * Whether the XML fragment is kept in memory instead of a file.
+   */
+  private final boolean xmlFragmentInMemory;
+
+  private Writer xmlFragmentWriter;
+
+  /**
+   * Constructor.
+   *
+   * @param resultFolder
+   *          The folder where the fragment files are written or <code>null</code> if the results
+   *          are not written into files.
+   * @param testId
+   *          The id of the test.
+   * @param binary
+   *          Whether the test cases should be written only into a binary fragment file in the
+   *          format of {@link TestClassResultCodec#writeTestCase(TestCaseResult, DataOutput)}
+   *          instead of text and XML fragment files.
+   * @param textFragmentInMemory
+   *          Whether the text fragment should be kept in memory, as it is appended to the text file
+   *          of the run.
+   * @param xmlFragmentInMemory
+   *          Whether the XML fragment should be kept in memory, as it is appended to the XML file
+   *          of the run.
+   * @param previousAttempts
+   *          The results of the previous failed attempts if the test class is retried. The
+   *          failures of a test case in the previous attempts are written into the XML fragment
+   *          file together with the test case.
+   */
+  TestCaseSpool(final File resultFolder, final String testId, final boolean binary,
+      final boolean textFragmentInMemory, final boolean xmlFragmentInMemory,
+      final List<TestClassResult> previousAttempts) {
+    this.resultFolder = resultFolder;
+    this.testId = testId;
+    this.binary = binary;
+    this.textFragmentInMemory = textFragmentInMemory;
+    this.xmlFragmentInMemory = xmlFragmentInMemory;
+    this.previousAttempts = previousAttempts;
+  }
+
+  /**
+   * Closes the fragment files. The fragment files are flushed only here, as they are not read
+   * before the result of the test class is dumped. Test cases that are reported after this call
+   * are ignored.
+   */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    closeWriter(xmlFragmentWriter, xmlFragmentFile);
+    closeWriter(textFragmentWriter, textFragmentFile);
+    closeWriter(binaryFragmentOutput, binaryFragmentFile);
+  }
+
+  private void closeWriter(final Closeable writer, final File file) {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error during closing file " + file, e);
+    }
+  }
+
+  private void createParentFolder(final File file) throws IOException {
+    File parentFolder = file.getParentFile();
+    if (!parentFolder.exists() && !parentFolder.mkdirs()) {
+      throw new IOException("Cannot create test result folder: " + parentFolder);
+    }
+  }
+
+  private void deleteFile(final File file) {
+    if ((file != null) && file.exists() && !file.delete()) {
+      LOGGER.warning("Could not delete file " + file.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Deletes the fragment files. Should be called after they are merged into the result files.
+   */
+  synchronized void deleteFragmentFiles() {
+    deleteFile(binaryFragmentFile);
+    deleteFile(textFragmentFile);
+    deleteFile(xmlFragmentFile);
+  }
+
+  /**
+   * The fragment file that contains the test cases in binary format.
+   *
+   * @return The file or <code>null</code> if no test case was written into a binary file.
+   */
+  synchronized File getBinaryFragmentFile() {
+    return (binaryFragmentOutput != null) ? binaryFragmentFile : null;
+  }
+
+  /**
+   * The reported test cases that failed.
+   *
+   * @return The test cases in the order they were reported.
+   */
+  synchronized List<TestCaseResult> getFailedTestCaseResults() {
+    return new ArrayList<>(failedTestCaseResults);
+  }
+
+  /**
+   * The name of the result files without extension that was generated when the first test case
+   * was reported.
+   *
+   * @return The file name or <code>null</code> if no test case was written into a file.
+   */
+  synchronized String getFileNameWithoutExtension() {
+    return fileNameWithoutExtension;
+  }
+
+  /**
+   * The number of test cases that were reported. If the test cases are written into fragment
+   * files, only the ones that were written successfully are counted, so the count matches the
+   * number of records in the binary fragment file.
+   *
+   * @return The number of test cases.
+   */
+  synchronized int getTestCaseCount() {
+    return testCaseCount;
+  }
+
+  /**
+   * The test cases in text format that were kept in memory.
+   *
+   * @return The text or <code>null</code> if no test case was kept in memory.
+   */
+  synchronized String getTextFragment() {
+    return (textFragmentBuffer != null) ? textFragmentBuffer.toString() : null;
+  }
+
+  /**
+   * The fragment file that contains the test cases in text format.
+   *
+   * @return The file or <code>null</code> if no test case was written into a file.
+   */
+  synchronized File getTextFragmentFile() {
+    return (textFragmentWriter != null) ? textFragmentFile : null;
+  }
+
+  /**
+   * The testcase XML elements that were kept in memory.
+   *
+   * @return The elements or <code>null</code> if no test case was kept in memory.
+   */
+  synchronized String getXmlFragment() {
+    return (xmlFragmentBuffer != null) ? xmlFragmentBuffer.toString() : null;
+  }
+
+  /**
+   * The fragment file that contains the testcase XML elements.
+   *
+   * @return The file or <code>null</code> if no test case was written into a file.
+   */
+  synchronized File getXmlFragmentFile() {
+    return (xmlFragmentWriter != null) ? xmlFragmentFile : null;
+  }
+
+  private void openFragmentFiles(final String className) throws IOException {
+    fileNameWithoutExtension =
+        ResultUtil.generateFileNameWithoutExtension(className, testId, true);
+
+    if (binary) {
+      binaryFragmentFile = new File(resultFolder, fileNameWithoutExtension + ".bin.part");
+      createParentFolder(binaryFragmentFile);
+      binaryFragmentOutput = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(binaryFragmentFile)));
+      return;
+    }
+
+    if (textFragmentInMemory) {
+      textFragmentBuffer = new StringWriter();
+    } else {
+      textFragmentFile = new File(resultFolder, fileNameWithoutExtension + ".txt.part");
+      textFragmentWriter = openWriter(textFragmentFile);
+    }
+
+    if (xmlFragmentInMemory) {
+      xmlFragmentBuffer = new StringWriter();
+    } else {
+      xmlFragmentFile = new File(resultFolder, fileNameWithoutExtension + ".xml.part");
+      xmlFragmentWriter = openWriter(xmlFragmentFile);
+    }
+  }
+
+  private Writer openWriter(final File file) throws IOException {
+    createParentFolder(file);
+    return new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Writes the result of a finished test case into the fragment files.
+   *
+   * @param className
+   *          The name of the test class.
+   * @param testCaseResult
+   *          The result of the test case.
+   */
+  synchronized void testCaseFinished(final String className,
+      final TestCaseResult testCaseResult) {
+
+    if (closed) {
+      LOGGER.warning("Test case " + className + "." + testCaseResult.testMethodName
+          + " finished after the result of its test class was reported. Ignoring it.");
+      return;
+    }
+    LOGGER.fine("Test case " + className + "." + testCaseResult.testMethodName + " finished");
+    if (testCaseResult.failure != null) {
+      failedTestCaseResults.add(testCaseResult);
+    }
+
+    if (resultFolder == null) {
+      testCaseCount++;
+      return;
+    }
+    try {
+      if (fileNameWithoutExtension == null) {
+        openFragmentFiles(className);
+      }
+      if (binary) {
+        TestClassResultCodec.writeTestCase(testCaseResult, binaryFragmentOutput);
+      } else {
+        ResultUtil.dumpTextTestCaseResult(testCaseResult, writtenStackTraces,
+            (textFragmentBuffer != null) ? textFragmentBuffer : textFragmentWriter);
+        ResultUtil.writeXmlTestCaseResult(className, testCaseResult,
+            ResultUtil.collectPreviousFailures(previousAttempts, testCaseResult.testMethodName),
+            (xmlFragmentBuffer != null) ? xmlFragmentBuffer : xmlFragmentWriter);
+      }
+      testCaseCount++;
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error during writing result of test case " + className + "."
+          + testCaseResult.testMethodName, e);
+    }
+  }
+
+  /**
+   * Logs that a test case is started.
+   *
+   * @param className
+   *          The name of the test class.
+   * @param testMethodName
+   *          The name of the test case.
+   */
+  void testCaseStarted(final String className, final String testMethodName) {
+    LOGGER.fine("Test case " + className + "." + testMethodName + " started");
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.everit.osgi.dev.testrunner.engine.TestCaseResult;
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+
+/**
+ * Writes and reads {@link TestClassResult}s in a compact binary format. The failures of the test
+ * cases are written with their type, message and rendered stack trace and they are read back as
+ * {@link RecordedFailure}s. The test cases are written after every other field of the test class
+ * result, so test cases that were written separately by {@link #writeTestCase(TestCaseResult,
+ * DataOutput)} can be appended to the output of {@link #writeHeader(TestClassResult, int,
+ * DataOutput)}.
+ */
+final class TestClassResultCodec {
+
+  /**
+   * A failure of a test case that was read from the binary format. The type and the stack trace
+   * of the original failure are reproduced when the failure is written into a result file.
+   */
+  static final class RecordedFailure extends Throwable {
+
+    private static final long serialVersionUID = 1L;
+
+    final boolean assertion;
+
+    final String renderedStackTrace;
+
+    final String type;
+
+    RecordedFailure(final String type, final String message, final boolean assertion,
+        final String renderedStackTrace) {
+      super(message, null, false, false);
+      this.type = type;
+      this.assertion = assertion;
+      this.renderedStackTrace = renderedStackTrace;
+    }
+
+    @Override
+    public void printStackTrace(final PrintStream s) {
+      s.print(renderedStackTrace);
+    }
+
+    @Override
+    public void printStackTrace(final PrintWriter s) {
+      s.print(renderedStackTrace);
+    }
+
+    @Override
+    public String toString() {
+      String message = getMessage();
+      return (message != null) ? (type + ": " + message) : type;
+    }
+  }
+
+  private static final int FORMAT_VERSION = 2;
+
+  /**
+   * The format version that does not contain the failures and the previous attempts.
+   */
+  private static final int FORMAT_VERSION_WITHOUT_FAILURES = 1;
+
+  private static final int NULL_STRING_LENGTH = -1;
+
+  /**
+   * Reads a test class result.
+   *
+   * @param in
+   *          The input to read from.
+   * @return The test class result.
+   * @throws IOException
+   *           if the input cannot be read or it has an unknown format.
+   */
+  static TestClassResult read(final DataInput in) throws IOException {
+    int formatVersion = in.readInt();
+    if ((formatVersion != FORMAT_VERSION)
+        && (formatVersion != FORMAT_VERSION_WITHOUT_FAILURES)) {
+      throw new IOException("Unknown test result format version: " + formatVersion);
+    }
+    return readTestClassResult(in, formatVersion == FORMAT_VERSION);
+  }
+
+  private static RecordedFailure readFailure(final DataInput in) throws IOException {
+    String type = readString(in);
+    String message = readString(in);
+    boolean assertion = in.readBoolean();
+    String renderedStackTrace = readString(in);
+    return new RecordedFailure(type, message, assertion, renderedStackTrace);
+  }
+
+  /**
+   * Reads a string that was written by {@link #writeString(String, DataOutput)}.
+   *
+   * @param in
+   *          The input to read from.
+   * @return The string or <code>null</code>.
+   * @throws IOException
+   *           if the input cannot be read.
+   */
+  static String readString(final DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length == NULL_STRING_LENGTH) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static TestClassResult readTestClassResult(final DataInput in,
+      final boolean withFailures) throws IOException {
+    TestClassResult testClassResult = new TestClassResult();
+    testClassResult.className = readString(in);
+    testClassResult.startTime = in.readLong();
+    testClassResult.finishTime = in.readLong();
+    testClassResult.runCount = in.readLong();
+    testClassResult.failureCount = in.readLong();
+    testClassResult.errorCount = in.readLong();
+    testClassResult.ignoreCount = in.readLong();
+
+    if (withFailures) {
+      int previousAttemptCount = in.readInt();
+      for (int i = 0; i < previousAttemptCount; i++) {
+        testClassResult.previousAttempts.add(readTestClassResult(in, true));
+      }
+    }
+
+    int testCaseCount = in.readInt();
+    for (int i = 0; i < testCaseCount; i++) {
+      TestCaseResult testCaseResult = new TestCaseResult();
+      testCaseResult.testMethodName = readString(in);
+      testCaseResult.startTime = in.readLong();
+      testCaseResult.finishTime = in.readLong();
+      if (withFailures && in.readBoolean()) {
+        testCaseResult.failure = readFailure(in);
+      }
+      testClassResult.testCaseResults.add(testCaseResult);
+    }
+    return testClassResult;
+  }
+
+  /**
+   * Writes a test class result.
+   *
+   * @param testClassResult
+   *          The result to write.
+   * @param out
+   *          The output to write to.
+   * @throws IOException
+   *           if the output cannot be written.
+   */
+  static void write(final TestClassResult testClassResult, final DataOutput out)
+      throws IOException {
+
+    writeHeader(testClassResult, testClassResult.testCaseResults.size(), out);
+    for (TestCaseResult testCaseResult : testClassResult.testCaseResults) {
+      writeTestCase(testCaseResult, out);
+    }
+  }
+
+  private static void writeFailure(final Throwable failure, final DataOutput out)
+      throws IOException {
+    writeString(ResultUtil.resolveFailureType(failure), out);
+    writeString(failure.getMessage(), out);
+    out.writeBoolean(ResultUtil.isAssertionFailure(failure));
+    writeString(ResultUtil.renderStackTrace(failure), out);
+  }
+
+  /**
+   * Writes every field of a test class result except the test cases. The output must be followed
+   * by the specified amount of test cases written by
+   * {@link #writeTestCase(TestCaseResult, DataOutput)}.
+   *
+   * @param testClassResult
+   *          The result to write.
+   * @param testCaseCount
+   *          The number of test cases that follow the header.
+   * @param out
+   *          The output to write to.
+   * @throws IOException
+   *           if the output cannot be written.
+   */
+  static void writeHeader(final TestClassResult testClassResult, final int testCaseCount,
+      final DataOutput out) throws IOException {
+    out.writeInt(FORMAT_VERSION);
+    writeTestClassFields(testClassResult, out);
+    out.writeInt(testCaseCount);
+  }
+
+  /**
+   * Writes a string with its length in UTF-8 encoding.
+   *
+   * @param value
+   *          The string to write or <code>null</code>.
+   * @param out
+   *          The output to write to.
+   * @throws IOException
+   *           if the output cannot be written.
+   */
+  static void writeString(final String value, final DataOutput out) throws IOException {
+    if (value == null) {
+      out.writeInt(NULL_STRING_LENGTH);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Writes a test case result.
+   *
+   * @param testCaseResult
+   *          The result to write.
+   * @param out
+   *          The output to write to.
+   * @throws IOException
+   *           if the output cannot be written.
+   */
+  static void writeTestCase(final TestCaseResult testCaseResult, final DataOutput out)
+      throws IOException {
+    writeString(testCaseResult.testMethodName, out);
+    out.writeLong(testCaseResult.startTime);
+    out.writeLong(testCaseResult.finishTime);
+    out.writeBoolean(testCaseResult.failure != null);
+    if (testCaseResult.failure != null) {
+      writeFailure(testCaseResult.failure, out);
+    }
+  }
+
+  private static void writeTestClassFields(final TestClassResult testClassResult,
+      final DataOutput out) throws IOException {
+    writeString(testClassResult.className, out);
+    out.writeLong(testClassResult.startTime);
+    out.writeLong(testClassResult.finishTime);
+    out.writeLong(testClassResult.runCount);
+    out.writeLong(testClassResult.failureCount);
+    out.writeLong(testClassResult.errorCount);
+    out.writeLong(testClassResult.ignoreCount);
+
+    out.writeInt(testClassResult.previousAttempts.size());
+    for (TestClassResult previousAttempt : testClassResult.previousAttempts) {
+      writeTestClassFields(previousAttempt, out);
+      out.writeInt(previousAttempt.testCaseResults.size());
+      for (TestCaseResult testCaseResult : previousAttempt.testCaseResults) {
+        writeTestCase(testCaseResult, out);
+      }
+    }
+  }
+
+  private TestClassResultCodec() {
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+import org.everit.osgi.dev.testrunner.engine.TestEngine;
+
+/**
+ * The execution lane of the tests that belong to the same {@link TestEngine}. Every lane has its
+ * own ready queue and concurrency limit, so a slow engine cannot hold back the tests of the other
+ * engines. The instances are not thread safe, they are accessed while holding the mutex of the
+ * {@link TestExtender}.
+ */
+class TestEngineLane {
+
+  /**
+   * The value of the {@link org.everit.osgi.dev.testrunner.TestRunnerConstants
+   * #SERVICE_PROPERTY_TESTRUNNER_ENGINE} property of the engine and the tests of this lane.
+   */
+  final String engineName;
+
+  /**
+   * The maximum number of tests that can run at the same time in this lane.
+   */
+  int maxConcurrency = Integer.MAX_VALUE;
+
+  /**
+   * The test services that wait for execution in the order they should be started.
+   */
+  final Queue<TestServiceWithReference> readyTests;
+
+  /**
+   * The number of executions of this lane that are currently running. An execution is either a
+   * single test or a batch of tests if the engine is a
+   * {@link org.everit.osgi.dev.testrunner.engine.BatchTestEngine}.
+   */
+  int runningTestCount = 0;
+
+  /**
+   * The engine of the lane or <code>null</code> if the engine is not available (yet).
+   */
+  TestEngine testEngine;
+
+  TestEngineLane(final String engineName,
+      final Comparator<TestServiceWithReference> schedulingComparator) {
+    this.engineName = engineName;
+    this.readyTests = new PriorityQueue<>(schedulingComparator);
+  }
+
+  /**
+   * Checks whether a test can be taken out of the ready queue of this lane.
+   *
+   * @return <code>true</code> if the engine is available, there is a ready test and the
+   *         concurrency limit of the lane is not reached yet.
+   */
+  boolean canStartTest() {
+    return (testEngine != null) && !readyTests.isEmpty() && (runningTestCount < maxConcurrency);
+  }
+
+  /**
+   * The number of tests that wait in the ready queue of this lane.
+   *
+   * @return The depth of the ready queue.
+   */
+  int getQueueDepth() {
+    return readyTests.size();
+  }
+
+  /**
+   * Checks if the lane has work that is running or can be started as soon as there is free
+   * capacity.
+   *
+   * @return <code>true</code> if there are running tests or there are ready tests and the engine is
+   *         available.
+   */
+  boolean isBusy() {
+    return (runningTestCount > 0) || ((testEngine != null) && !readyTests.isEmpty());
+  }
+
+  /**
+   * Writes the state of the lane into a {@link StringBuilder} in a line that starts with two spaces
+   * and ends with a line break.
+   *
+   * @param sb
+   *          The {@link StringBuilder} that the state is written to.
+   */
+  void logState(final StringBuilder sb) {
+    sb.append("  Test engine '").append(engineName).append("': ").append(getQueueDepth())
+        .append(" queued, ").append(runningTestCount).append(" running");
+
+    if (maxConcurrency != Integer.MAX_VALUE) {
+      sb.append(" (max. ").append(maxConcurrency).append(")");
+    }
+    if (testEngine == null) {
+      sb.append(", engine is not available");
+    }
+    sb.append('\n');
+  }
+}
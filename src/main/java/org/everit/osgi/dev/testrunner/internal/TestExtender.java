@@ -18,25 +18,52 @@ package org.everit.osgi.dev.testrunner.internal;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 import org.everit.osgi.dev.testrunner.TestRunnerConstants;
+import org.everit.osgi.dev.testrunner.blocking.AbstractShutdownBlocker;
+import org.everit.osgi.dev.testrunner.blocking.ShutdownBlocker;
+import org.everit.osgi.dev.testrunner.engine.AsyncTestEngine;
+import org.everit.osgi.dev.testrunner.engine.BatchTestEngine;
+import org.everit.osgi.dev.testrunner.engine.TestCaseListener;
+import org.everit.osgi.dev.testrunner.engine.TestCaseResult;
 import org.everit.osgi.dev.testrunner.engine.TestClassResult;
 import org.everit.osgi.dev.testrunner.engine.TestEngine;
 import org.everit.osgi.dev.testrunner.engine.TestExecutionContext;
+import org.everit.osgi.dev.testrunner.engine.TestInstance;
 import org.everit.osgi.dev.testrunner.internal.blocking.BlockingManagerImpl;
+import org.everit.osgi.dev.testrunner.internal.blocking.TestClassShutdownBlockerImpl;
+import org.everit.osgi.dev.testrunner.internal.util.ThreadUtil;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Filter;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
@@ -45,6 +72,127 @@ import org.osgi.util.tracker.ServiceTrackerCustomizer;
  */
 public class TestExtender {
 
+  /**
+   * The tests that were taken out of the ready queue of a lane together, to be run by the engine of
+   * the lane. A batch takes one unit of the capacity until all of its tests are completed. If the
+   * engine is not a {@link BatchTestEngine}, every batch contains one test.
+   */
+  private static class ReadyBatch {
+
+    /**
+     * Whether the engine of the batch is an {@link AsyncTestEngine}. In that case the batch does
+     * not occupy a thread of the test runner while its test is running.
+     */
+    final boolean async;
+
+    final TestEngineLane lane;
+
+    final AtomicInteger remainingTestCount = new AtomicInteger();
+
+    final TestEngine testEngine;
+
+    final List<ReadyTest> tests = new ArrayList<>();
+
+    ReadyBatch(final TestEngineLane lane) {
+      this.lane = lane;
+      this.testEngine = lane.testEngine;
+      this.async = testEngine instanceof AsyncTestEngine;
+    }
+
+    ReadyTest addTest(final TestServiceWithReference testServiceWithReference,
+        final List<TestClassResult> previousAttempts, final TestCaseSpool testCaseSpool) {
+      ReadyTest readyTest =
+          new ReadyTest(this, testServiceWithReference, previousAttempts, testCaseSpool);
+      tests.add(readyTest);
+      remainingTestCount.incrementAndGet();
+      return readyTest;
+    }
+  }
+
+  /**
+   * A test service that was taken out of the ready queue of a lane.
+   */
+  private static class ReadyTest {
+
+    final ReadyBatch batch;
+
+    /**
+     * The key of the test in the result cache or <code>null</code> if the cache is not used.
+     */
+    String cacheKey;
+
+    /**
+     * Whether the result of the test is replayed from the result cache instead of running the
+     * test.
+     */
+    boolean cached;
+
+    /**
+     * Set by the thread that completes the test. This is either the thread that ran the test or
+     * the watchdog if the test did not finish in time.
+     */
+    final AtomicBoolean completed = new AtomicBoolean(false);
+
+    /**
+     * The results of the previous failed attempts if the test is retried.
+     */
+    final List<TestClassResult> previousAttempts;
+
+    long startTime;
+
+    /**
+     * Set by the watchdog if the test did not finish in time. A timed out test is not retried, as
+     * the thread of the stuck attempt might still be running.
+     */
+    volatile boolean timedOut;
+
+    /**
+     * The test cases that the engine reported via the {@link TestCaseListener} while the test was
+     * running.
+     */
+    final TestCaseSpool testCaseSpool;
+
+    final TestServiceWithReference testServiceWithReference;
+
+    ReadyTest(final ReadyBatch batch,
+        final TestServiceWithReference testServiceWithReference,
+        final List<TestClassResult> previousAttempts, final TestCaseSpool testCaseSpool) {
+      this.batch = batch;
+      this.previousAttempts = previousAttempts;
+      this.testServiceWithReference = testServiceWithReference;
+      this.testCaseSpool = testCaseSpool;
+    }
+  }
+
+  /**
+   * Blocks the shutdown of the framework while there are running tests or tests that can be
+   * started. The block causes contain the queue depth of every lane, so it is visible which engine
+   * is the bottleneck of a test run.
+   */
+  private class TestEngineLaneShutdownBlocker extends AbstractShutdownBlocker {
+
+    @Override
+    public void logBlockCauses(final StringBuilder sb) {
+      synchronized (mutex) {
+        sb.append("  Running tests: ").append(runningTestCount).append(" (max. ")
+            .append(configuration.testParallelism).append(")\n");
+        sb.append("  Asynchronous tests in flight: ").append(runningAsyncTestCount)
+            .append(" (max. ").append(configuration.asyncTestMaxInFlight).append(")\n");
+        for (TestEngineLane lane : testEngineLanesByName.values()) {
+          lane.logState(sb);
+        }
+      }
+    }
+
+    void updateBlocking(final boolean blocking) {
+      if (blocking) {
+        block();
+      } else {
+        unblock();
+      }
+    }
+  }
+
   /**
    * Tracks test engine OSGi services.
    */
@@ -64,7 +212,10 @@ public class TestExtender {
       }
 
       synchronized (mutex) {
-        testEngineByName.put((String) testEngineProp, testEngine);
+        TestEngineLane lane = getOrCreateLaneInSync((String) testEngineProp);
+        lane.testEngine = testEngine;
+        lane.maxConcurrency = resolveMaxConcurrency(reference);
+        updateBlockingInSync();
         mutex.notifyAll();
       }
       return testEngine;
@@ -73,6 +224,16 @@ public class TestExtender {
     @Override
     public void modifiedService(final ServiceReference<TestEngine> reference,
         final TestEngine service) {
+
+      String name = String
+          .valueOf(reference.getProperty(TestRunnerConstants.SERVICE_PROPERTY_TESTRUNNER_ENGINE));
+      synchronized (mutex) {
+        TestEngineLane lane = testEngineLanesByName.get(name);
+        if (lane != null) {
+          lane.maxConcurrency = resolveMaxConcurrency(reference);
+          mutex.notifyAll();
+        }
+      }
     }
 
     @Override
@@ -82,7 +243,11 @@ public class TestExtender {
       String name = String
           .valueOf(reference.getProperty(TestRunnerConstants.SERVICE_PROPERTY_TESTRUNNER_ENGINE));
       synchronized (mutex) {
-        testEngineByName.remove(name);
+        TestEngineLane lane = testEngineLanesByName.get(name);
+        if (lane != null) {
+          lane.testEngine = null;
+          updateBlockingInSync();
+        }
       }
       bundleContext.ungetService(reference);
     }
@@ -96,53 +261,94 @@ public class TestExtender {
     @Override
     public Object addingService(final ServiceReference<Object> reference) {
       Object service = bundleContext.getService(reference);
-      addTest(reference, service);
+      if ((testWatcher == null)
+          || testWatcher.registerTest(new TestServiceWithReference(reference, service))) {
+        addTest(reference, service);
+      }
       return service;
     }
 
     @Override
     public void modifiedService(final ServiceReference<Object> reference, final Object service) {
-      // Do nothing for now
+      if (testWatcher != null) {
+        testWatcher.scheduleRerun(new TestServiceWithReference(reference, service));
+      }
     }
 
     @Override
     public void removedService(final ServiceReference<Object> reference, final Object service) {
+      if (testWatcher != null) {
+        testWatcher.cancelRerun(reference);
+      }
       removeTest(reference, service);
       bundleContext.ungetService(reference);
     }
   }
 
   /**
-   * Simple holder class of an OSGi service reference and the service object. Two instances of this
-   * class are equal if the reference instance is equal.
+   * The thread that runs synchronous tests while it is inside the engine. The watchdog can
+   * interrupt the thread only until the engine call returns, so the interrupt never reaches the
+   * next task of a pooled thread.
    */
-  private static class TestServiceWithReference {
+  private static class WatchedTestThread {
 
-    ServiceReference<Object> reference;
+    private boolean interrupted = false;
 
-    Object service;
+    private boolean running = true;
 
-    TestServiceWithReference(final ServiceReference<Object> reference,
-        final Object service) {
-      this.reference = reference;
-      this.service = service;
-    }
+    final Thread thread;
 
-    @Override
-    public boolean equals(final Object obj) {
-      return (obj instanceof TestServiceWithReference)
-          && ((TestServiceWithReference) obj).reference.equals(reference);
+    WatchedTestThread(final Thread thread) {
+      this.thread = thread;
     }
 
-    @Override
-    public int hashCode() {
-      return reference.hashCode();
+    /**
+     * Called by the thread itself when the engine call returned. If the watchdog interrupted the
+     * thread, the interrupted status is cleared, so it does not leak into the next task.
+     */
+    synchronized void finish() {
+      running = false;
+      if (interrupted) {
+        Thread.interrupted();
+      }
     }
 
+    /**
+     * Interrupts the thread if it is still inside the engine call.
+     */
+    synchronized void interrupt() {
+      if (running) {
+        interrupted = true;
+        thread.interrupt();
+      }
+    }
   }
 
+  /**
+   * The name of the test case that is reported if the engine of a test class throws an exception
+   * or does not report a result.
+   */
+  private static final String ENGINE_ERROR_TEST_CASE_NAME = "testClassError";
+
   private static final Logger LOGGER = Logger.getLogger(TestExtender.class.getName());
 
+  /**
+   * The maximum number of coalescing windows that the dispatcher waits for after the first pending
+   * test service arrival.
+   */
+  private static final int MAX_ARRIVAL_QUIESCENCE_WINDOWS = 10;
+
+  /**
+   * The size of the write buffer in characters of the result files that are kept open during the
+   * whole run.
+   */
+  private static final int RUN_RESULT_FILE_BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * The name of the test case that is reported if a test class does not finish in time.
+   */
+  private static final String TIMEOUT_TEST_CASE_NAME = "testClassTimeout";
+
   private static final File TEST_RESULT_FOLDER_FILE;
 
   static {
@@ -154,6 +360,12 @@ public class TestExtender {
     }
   }
 
+  private static void cancelWatchdog(final ScheduledFuture<?> watchdogFuture) {
+    if (watchdogFuture != null) {
+      watchdogFuture.cancel(false);
+    }
+  }
+
   private static Map<String, ?> extractServiceReferencePropsAsMap(
       final ServiceReference<Object> reference) {
 
@@ -165,25 +377,190 @@ public class TestExtender {
     return result;
   }
 
+  private static int resolveMaxConcurrency(final ServiceReference<TestEngine> reference) {
+    Object maxConcurrencyProp = reference
+        .getProperty(TestRunnerConstants.SERVICE_PROPERTY_TESTRUNNER_ENGINE_MAX_CONCURRENCY);
+
+    if (maxConcurrencyProp == null) {
+      return Integer.MAX_VALUE;
+    }
+    try {
+      int maxConcurrency = (maxConcurrencyProp instanceof Number)
+          ? ((Number) maxConcurrencyProp).intValue()
+          : Integer.parseInt(String.valueOf(maxConcurrencyProp).trim());
+      if (maxConcurrency > 0) {
+        return maxConcurrency;
+      }
+    } catch (NumberFormatException e) {
+      // Warning is logged below
+    }
+    LOGGER.warning("Value of '"
+        + TestRunnerConstants.SERVICE_PROPERTY_TESTRUNNER_ENGINE_MAX_CONCURRENCY
+        + "' service property must be a positive integer. Ignoring: " + reference.toString());
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * Calculates the shard of a test service from the CRC32 checksum of the class name and the test
+   * id, so the result is the same in every JVM.
+   */
+  private static int resolveShardIndex(final TestServiceWithReference test,
+      final int shardCount) {
+    String testId = ResultUtil.getTestIdFromReference(test.reference);
+    CRC32 crc = new CRC32();
+    crc.update((test.service.getClass().getName() + "#" + testId)
+        .getBytes(StandardCharsets.UTF_8));
+    return (int) (crc.getValue() % shardCount);
+  }
+
+  /**
+   * Whether test services arrived that the dispatcher has not scheduled yet because the coalescing
+   * window is still open.
+   */
+  private boolean arrivalPending = false;
+
+  /**
+   * Appends the results to the binary file of the run or <code>null</code> if the results are
+   * written in text and XML format.
+   */
+  private BinaryResultLogWriter binaryResultLogWriter;
+
   private final BlockingManagerImpl blockingManager;
 
   private final BundleContext bundleContext;
 
-  private final boolean developmentMode;
+  private final TestRunnerConfiguration configuration;
+
+  /**
+   * The tests that should be re-run in watch mode when their running attempt is completed.
+   */
+  private final Set<TestServiceWithReference> deferredReruns = new LinkedHashSet<>();
+
+  /**
+   * Set when the first failing test finished in fail-fast mode. No new tests are started after
+   * that.
+   */
+  private boolean failFastTriggered = false;
+
+  private long firstPendingArrivalNanos;
+
+  /**
+   * The index of the lane in {@link #testEngineLanesByName} where the next search for a ready test
+   * starts. The lanes are visited in a round-robin way so all of them get a chance for the free
+   * capacity.
+   */
+  private int laneCursor = 0;
+
+  private long lastArrivalNanos;
 
   private final Object mutex = new Object();
 
-  private final Map<String, Set<TestServiceWithReference>> nonExecutedServicesByEngines =
+  private final AtomicBoolean opened = new AtomicBoolean(false);
+
+  /**
+   * The results of the failed attempts of the tests that are waiting in a ready queue to be
+   * retried.
+   */
+  private final Map<TestServiceWithReference, List<TestClassResult>> previousAttemptsByTest =
       new HashMap<>();
 
-  private final AtomicBoolean opened = new AtomicBoolean(false);
+  /**
+   * Delivers the results of the tests to the result sink services.
+   */
+  private ResultSinkFanOut resultSinkFanOut;
+
+  private ServiceRegistration<ShutdownBlocker> resultSinkFanOutSR;
+
+  /**
+   * The number of asynchronous tests that are currently in flight in all of the lanes.
+   */
+  private int runningAsyncTestCount = 0;
+
+  /**
+   * The number of tests or batches that are currently running on threads of the test runner in
+   * all of the lanes.
+   */
+  private int runningTestCount = 0;
+
+  /**
+   * The attempts of the tests that were taken out of the ready queues and are not completed yet.
+   */
+  private final Map<TestServiceWithReference, ReadyTest> runningTestsByService = new HashMap<>();
+
+  private TestEngineLaneShutdownBlocker shutdownBlocker;
+
+  private ServiceRegistration<ShutdownBlocker> shutdownBlockerSR;
+
+  /**
+   * The permits of the threads above {@link TestRunnerConfiguration#testParallelism} that the
+   * running test classes share to run their test cases in parallel or <code>null</code> if there
+   * are no such threads.
+   */
+  private Semaphore testCaseThreadPermits;
+
+  private final TestClassShutdownBlockerImpl testClassBlocker;
+
+  /**
+   * The execution lanes by the name of the engine. The lanes are accessed only while holding the
+   * {@link #mutex}, but the tests are executed outside of it, so service events are not blocked
+   * while a test class is running.
+   */
+  private final Map<String, TestEngineLane> testEngineLanesByName = new LinkedHashMap<>();
+
+  /**
+   * The worker pool that runs the test classes if the test parallelism is greater than one or
+   * there is a test timeout. Otherwise the tests are executed on the thread of the dispatcher.
+   */
+  private ExecutorService testExecutor;
+
+  /**
+   * The cache of successful test results or <code>null</code> if the incremental mode is not
+   * enabled.
+   */
+  private final TestResultCache testResultCache;
+
+  /**
+   * Writes the results of the tests on a dedicated thread.
+   */
+  private TestResultWriter testResultWriter;
+
+  private ServiceRegistration<ShutdownBlocker> testResultWriterSR;
 
-  private final Map<String, TestEngine> testEngineByName = new HashMap<>();
+  private final TestRunHistory testRunHistory;
+
+  /**
+   * Appends the text results to the log file of the run or <code>null</code> if a text file is
+   * written for each test class.
+   */
+  private TextResultLogWriter textResultLogWriter;
 
   private ServiceTracker<TestEngine, TestEngine> testRunnerEngineTracker;
 
   private ServiceTracker<Object, Object> testServiceTracker;
 
+  /**
+   * The system properties that are written into the XML results. Captured when the extender is
+   * opened.
+   */
+  private TestSuiteProperties testSuiteProperties;
+
+  /**
+   * Re-runs the affected tests on changes in watch mode or <code>null</code> if watch mode is not
+   * enabled.
+   */
+  private TestWatcher testWatcher;
+
+  /**
+   * Fires when a test class does not finish within the configured timeout.
+   */
+  private ScheduledThreadPoolExecutor timeoutWatchdog;
+
+  /**
+   * Appends the XML results to the testsuites file of the run or <code>null</code> if an XML file
+   * is written for each test class.
+   */
+  private XmlTestSuitesWriter xmlTestSuitesWriter;
+
   /**
    * Constructor.
    *
@@ -191,43 +568,97 @@ public class TestExtender {
    *          the context of the bundle.
    * @param blockingManager
    *          The blocking manager that is notified when a test is executed.
-   * @param developmentMode
-   *          Whether the test runner is in development mode or not. In development mode only those
-   *          tests are executed that are annotated with @TestDuringDevelopment.
+   * @param testClassBlocker
+   *          The blocker that is notified about the tests that belong to other shards or
+   *          <code>null</code> if the framework is not stopped after the tests.
+   * @param configuration
+   *          The settings of the test runner.
    */
   public TestExtender(final BundleContext bundleContext,
-      final BlockingManagerImpl blockingManager, final boolean developmentMode) {
+      final BlockingManagerImpl blockingManager,
+      final TestClassShutdownBlockerImpl testClassBlocker,
+      final TestRunnerConfiguration configuration) {
     this.bundleContext = bundleContext;
     this.blockingManager = blockingManager;
-    this.developmentMode = developmentMode;
+    this.testClassBlocker = testClassBlocker;
+    this.configuration = configuration;
+    this.testRunHistory = new TestRunHistory(TEST_RESULT_FOLDER_FILE);
+
+    if (configuration.testResultCache && (TEST_RESULT_FOLDER_FILE == null)) {
+      LOGGER.warning("Test result cache is not used as the '"
+          + TestRunnerConstants.PROP_TEST_RESULT_FOLDER + "' property is not specified");
+    }
+    this.testResultCache = (configuration.testResultCache && (TEST_RESULT_FOLDER_FILE != null))
+        ? new TestResultCache(TEST_RESULT_FOLDER_FILE, configuration.developmentMode)
+        : null;
+  }
+
+  /**
+   * Completes a test with an error if it was not completed yet. This happens if the engine threw
+   * an exception or did not return a result for every test of a batch. The error is reported like
+   * any other result, so it is written into the result files and it is counted by the
+   * {@link BlockingManagerImpl}.
+   *
+   * @param readyTest
+   *          The test that is completed.
+   * @param cause
+   *          The exception that the engine threw or <code>null</code> if the engine did not
+   *          report a result without throwing an exception.
+   */
+  private void abandonTest(final ReadyTest readyTest, final Throwable cause) {
+    if (readyTest.completed.compareAndSet(false, true)) {
+      LOGGER.severe("No result was reported for test "
+          + readyTest.testServiceWithReference.reference.toString());
+      Throwable error = cause;
+      if (error == null) {
+        error = new IllegalStateException("The test engine did not report a result");
+      }
+      completeTest(readyTest, createErrorResult(readyTest, ENGINE_ERROR_TEST_CASE_NAME, error));
+    }
+  }
+
+  private void addReadyTestInSync(final ReadyBatch readyBatch,
+      final TestServiceWithReference test) {
+    List<TestClassResult> previousAttempts = previousAttemptsByTest.remove(test);
+    if (previousAttempts == null) {
+      previousAttempts = Collections.<TestClassResult> emptyList();
+    }
+    TestCaseSpool testCaseSpool = new TestCaseSpool(TEST_RESULT_FOLDER_FILE,
+        ResultUtil.getTestIdFromReference(test.reference), binaryResultLogWriter != null,
+        textResultLogWriter != null, xmlTestSuitesWriter != null, previousAttempts);
+    runningTestsByService.put(test, readyBatch.addTest(test, previousAttempts, testCaseSpool));
   }
 
   private void addTest(final ServiceReference<Object> reference,
       final Object service) {
 
-    Object engineProp =
-        reference.getProperty(TestRunnerConstants.SERVICE_PROPERTY_TESTRUNNER_ENGINE);
-
-    if ((engineProp == null) || !(engineProp instanceof String)) {
-      LOGGER.log(Level.WARNING,
-          "Unrecognized '" + TestRunnerConstants.SERVICE_PROPERTY_TESTRUNNER_ENGINE
-              + "' service property value for test. Are you sure the test engine is available?"
-              + " Ignoring: " + reference.toString());
+    TestServiceWithReference test = new TestServiceWithReference(reference, service);
+    String engine = resolveEngineOfTest(test);
+    if (engine == null) {
       return;
     }
-
-    String engine = (String) engineProp;
-
     synchronized (mutex) {
+      addTestInSync(engine, test);
+    }
+  }
 
-      Set<TestServiceWithReference> tests = nonExecutedServicesByEngines.get(engine);
-      if (tests == null) {
-        tests = new HashSet<>();
-        nonExecutedServicesByEngines.put(engine, tests);
+  /**
+   * Puts a test into the ready queue of the lane of its engine unless it is already there. Must be
+   * called while holding the {@link #mutex}.
+   */
+  private void addTestInSync(final String engine, final TestServiceWithReference test) {
+    TestEngineLane lane = getOrCreateLaneInSync(engine);
+    if (lane.readyTests.contains(test)) {
+      return;
+    }
+    lane.readyTests.add(test);
+    if (lane.canStartTest()) {
+      updateBlockingInSync();
+      if (configuration.testArrivalQuiescence == 0) {
+        mutex.notifyAll();
+      } else {
+        registerArrivalInSync();
       }
-
-      tests.add(new TestServiceWithReference(reference, service));
-      mutex.notifyAll();
     }
   }
 
@@ -241,8 +672,203 @@ public class TestExtender {
       mutex.notifyAll();
     }
 
+    if (testWatcher != null) {
+      testWatcher.close();
+    }
+
     testServiceTracker.close();
     testRunnerEngineTracker.close();
+
+    if (testExecutor != null) {
+      testExecutor.shutdown();
+    }
+
+    if (timeoutWatchdog != null) {
+      timeoutWatchdog.shutdownNow();
+    }
+
+    if (shutdownBlockerSR != null) {
+      shutdownBlockerSR.unregister();
+    }
+
+    testResultWriter.close();
+
+    if (testResultWriterSR != null) {
+      testResultWriterSR.unregister();
+    }
+
+    resultSinkFanOut.close();
+
+    if (resultSinkFanOutSR != null) {
+      resultSinkFanOutSR.unregister();
+    }
+
+    if (xmlTestSuitesWriter != null) {
+      xmlTestSuitesWriter.close();
+    }
+
+    if (textResultLogWriter != null) {
+      textResultLogWriter.close();
+    }
+
+    if (binaryResultLogWriter != null) {
+      binaryResultLogWriter.close();
+    }
+
+    testRunHistory.save();
+  }
+
+  /**
+   * Checks whether a lane can start a test and there is free capacity for the engine type of the
+   * lane. Must be called while holding the {@link #mutex}.
+   */
+  private boolean canStartTestInSync(final TestEngineLane lane) {
+    boolean capacityAvailable = (lane.testEngine instanceof AsyncTestEngine)
+        ? runningAsyncTestCount < configuration.asyncTestMaxInFlight
+        : runningTestCount < configuration.testParallelism;
+    return capacityAvailable && lane.canStartTest();
+  }
+
+  /**
+   * Records, dumps and reports the result of a test and releases its capacity.
+   *
+   * @param readyTest
+   *          The test that is completed.
+   * @param result
+   *          The result of the test.
+   */
+  private void completeTest(final ReadyTest readyTest, final TestClassResult result) {
+    try {
+      if (retryTest(readyTest, result)) {
+        return;
+      }
+      result.previousAttempts.addAll(readyTest.previousAttempts);
+
+      if (!readyTest.cached) {
+        testRunHistory.recordResult(readyTest.testServiceWithReference, result);
+      }
+      dumpTestResults(readyTest, result);
+      resultSinkFanOut.publish(result,
+          ResultUtil.getTestIdFromReference(readyTest.testServiceWithReference.reference));
+
+      if (blockingManager != null) {
+        blockingManager.handleTestClassResult(result);
+      }
+
+      if (configuration.failFast && ResultUtil.hasFailure(result)) {
+        triggerFailFast(result);
+      }
+    } finally {
+      releaseTest(readyTest);
+    }
+  }
+
+  /**
+   * Completes a test with its cached result if the incremental mode is enabled and the test did
+   * not change since its last successful run. The cached result is reported as a zero-duration
+   * run at the current time and it is not recorded in the {@link TestRunHistory}, so the duration
+   * of the last real run is kept for scheduling.
+   *
+   * @return <code>true</code> if the test was completed from the cache.
+   */
+  private boolean completeTestFromCache(final ReadyTest readyTest) {
+    if (testResultCache == null) {
+      return false;
+    }
+    readyTest.cacheKey = testResultCache.resolveKey(readyTest.batch.lane.engineName,
+        readyTest.testServiceWithReference);
+    TestClassResult cachedResult =
+        (readyTest.cacheKey != null) ? testResultCache.get(readyTest.cacheKey) : null;
+    if (cachedResult == null) {
+      return false;
+    }
+    LOGGER.info("Test " + cachedResult.className + " is not changed since its last successful"
+        + " run, reporting cached result");
+    long now = System.currentTimeMillis();
+    cachedResult.startTime = now;
+    cachedResult.finishTime = now;
+    for (TestCaseResult testCaseResult : cachedResult.testCaseResults) {
+      testCaseResult.startTime = now;
+      testCaseResult.finishTime = now;
+    }
+    readyTest.startTime = now;
+    readyTest.cached = true;
+    readyTest.completed.set(true);
+    completeTest(readyTest, cachedResult);
+    return true;
+  }
+
+  /**
+   * Completes a test with the result that the engine returned, unless the test was already
+   * completed by the watchdog.
+   */
+  private void completeTestWithResult(final ReadyTest readyTest, final TestClassResult result) {
+    if (readyTest.completed.compareAndSet(false, true)) {
+      if ((readyTest.cacheKey != null) && !ResultUtil.hasFailure(result)
+          && readyTest.previousAttempts.isEmpty()
+          && (readyTest.testCaseSpool.getTestCaseCount() == 0)) {
+        testResultCache.put(readyTest.cacheKey, result);
+      }
+      completeTest(readyTest, result);
+    } else {
+      LOGGER.warning("Test " + result.className + " finished after its timeout. The result is"
+          + " ignored: " + result.toString());
+    }
+  }
+
+  /**
+   * Creates the result of a test class that contains one test case with an error.
+   */
+  private TestClassResult createErrorResult(final ReadyTest readyTest, final String testCaseName,
+      final Throwable error) {
+
+    long finishTime = System.currentTimeMillis();
+    long startTime = (readyTest.startTime != 0) ? readyTest.startTime : finishTime;
+
+    TestCaseResult testCaseResult = new TestCaseResult();
+    testCaseResult.testMethodName = testCaseName;
+    testCaseResult.startTime = startTime;
+    testCaseResult.finishTime = finishTime;
+    testCaseResult.failure = error;
+
+    TestClassResult testClassResult = new TestClassResult();
+    testClassResult.className = readyTest.testServiceWithReference.service.getClass().getName();
+    testClassResult.startTime = startTime;
+    testClassResult.finishTime = finishTime;
+    testClassResult.runCount = 1;
+    testClassResult.errorCount = 1;
+    testClassResult.testCaseResults.add(testCaseResult);
+    return testClassResult;
+  }
+
+  private TestExecutionContext createTestExecutionContext(final List<ReadyTest> readyTests) {
+    TestCaseListenerImpl testCaseListener = new TestCaseListenerImpl();
+    for (ReadyTest readyTest : readyTests) {
+      testCaseListener.addTestObject(readyTest.testServiceWithReference.service,
+          readyTest.testCaseSpool);
+    }
+
+    TestExecutionContext testExecutionContext = new TestExecutionContext();
+    testExecutionContext.developmentMode = configuration.developmentMode;
+    testExecutionContext.testCaseListener = testCaseListener;
+
+    int parallelism = configuration.testMaxThreads / configuration.testParallelism;
+    testExecutionContext.parallelism = parallelism;
+    if (testCaseThreadPermits != null) {
+      testExecutionContext.executor =
+          new TestCaseExecutor(testExecutor, testCaseThreadPermits, parallelism);
+    } else {
+      testExecutionContext.executor = Runnable::run;
+    }
+    return testExecutionContext;
+  }
+
+  private TestInstance createTestInstance(final ReadyTest readyTest) {
+    TestInstance testInstance = new TestInstance();
+    testInstance.testObject = readyTest.testServiceWithReference.service;
+    testInstance.properties =
+        extractServiceReferencePropsAsMap(readyTest.testServiceWithReference.reference);
+    return testInstance;
   }
 
   private ServiceTracker<Object, Object> createTestServiceTracker() {
@@ -256,35 +882,132 @@ public class TestExtender {
     }
   }
 
-  private void dumpTestResults(final ServiceReference<Object> testServiceReference,
-      final TestClassResult testClassResult) {
+  private TestClassResult createTimeoutResult(final ReadyTest readyTest,
+      final StackTraceElement[] stackTrace) {
 
-    String testId = ResultUtil.getTestIdFromReference(testServiceReference);
-    if (TEST_RESULT_FOLDER_FILE != null) {
-      String fileName =
-          ResultUtil.generateFileNameWithoutExtension(testClassResult.className, testId,
-              true);
+    TimeoutException timeoutException = new TimeoutException(
+        "Test class did not finish within " + configuration.testTimeout + " ms");
+    timeoutException.setStackTrace(stackTrace);
+    return createErrorResult(readyTest, TIMEOUT_TEST_CASE_NAME, timeoutException);
+  }
 
-      File textFile = new File(TEST_RESULT_FOLDER_FILE, fileName + ".txt");
-      try {
-        ResultUtil.writeTextResultToFile(testClassResult, testId, textFile, true);
-      } catch (IOException e) {
-        LOGGER.log(Level.SEVERE, "Error during text test result " + testClassResult.toString()
-            + " to file " + textFile.getAbsolutePath(), e);
+  /**
+   * Waits until there are tests that can be executed, takes them out of the ready queues in a short
+   * critical section and runs them outside of the {@link #mutex}.
+   */
+  private void dispatchTests() {
+    while (opened.get()) {
+      List<ReadyBatch> readyBatches;
+      synchronized (mutex) {
+        waitForArrivalQuiescenceInSync();
+        readyBatches = takeReadyBatchesInSync();
+        while (readyBatches.isEmpty() && opened.get()) {
+          waitInSync(0);
+          waitForArrivalQuiescenceInSync();
+          readyBatches = takeReadyBatchesInSync();
+        }
       }
 
-      File xmlFile = new File(TEST_RESULT_FOLDER_FILE, fileName + ".xml");
+      for (ReadyBatch readyBatch : readyBatches) {
+        if (readyBatch.async) {
+          startAsyncTest(readyBatch.tests.get(0));
+        } else if (testExecutor != null) {
+          testExecutor.execute(() -> runBatchInWorker(readyBatch));
+        } else {
+          runBatch(readyBatch);
+        }
+      }
+    }
+  }
+
+  /**
+   * Hands the result of a test over to the {@link TestResultWriter}. The {@link TestCaseSpool} of
+   * the test is closed first, so the test cases that arrive later are not mixed into the result.
+   */
+  private void dumpTestResults(final ReadyTest readyTest, final TestClassResult testClassResult) {
+    readyTest.testCaseSpool.close();
+    testResultWriter.submit(() -> writeTestResults(readyTest, testClassResult));
+  }
+
+  private void finishBatch(final ReadyBatch readyBatch) {
+    synchronized (mutex) {
+      readyBatch.lane.runningTestCount--;
+      if (readyBatch.async) {
+        runningAsyncTestCount--;
+      } else {
+        runningTestCount--;
+      }
+      updateBlockingInSync();
+      mutex.notifyAll();
+    }
+  }
+
+  private TestEngineLane getOrCreateLaneInSync(final String engineName) {
+    TestEngineLane lane = testEngineLanesByName.get(engineName);
+    if (lane == null) {
+      lane = new TestEngineLane(engineName, testRunHistory.createSchedulingComparator());
+      testEngineLanesByName.put(engineName, lane);
+    }
+    return lane;
+  }
 
-      ResultUtil.writeXmlResultToFile(testClassResult, xmlFile, testId, true);
+  private List<TestServiceWithReference> getTrackedTests() {
+    List<TestServiceWithReference> result = new ArrayList<>();
+    for (Map.Entry<ServiceReference<Object>, Object> entry : testServiceTracker.getTracked()
+        .entrySet()) {
+      result.add(new TestServiceWithReference(entry.getKey(), entry.getValue()));
     }
+    return result;
+  }
 
+  /**
+   * Called by the watchdog if the stage of an asynchronous test is not completed in time. There is
+   * no thread that could be interrupted, so the stage is cancelled if it supports cancellation and
+   * the test is reported with an error.
+   */
+  private void handleAsyncTestTimeout(final ReadyTest readyTest,
+      final CompletionStage<TestClassResult> stage) {
+
+    if (!readyTest.completed.compareAndSet(false, true)) {
+      return;
+    }
+    readyTest.timedOut = true;
+    TestClassResult result = createTimeoutResult(readyTest, new StackTraceElement[0]);
+    writeThreadDump(readyTest, result, null);
     try {
-      StringWriter sw = new StringWriter();
-      sw.write("\n");
-      ResultUtil.dumpTextResult(testClassResult, testId, sw);
-      LOGGER.info(sw.toString());
-    } catch (IOException e) {
-      LOGGER.log(Level.SEVERE, "Error dumping text result to standard output", e);
+      stage.toCompletableFuture().cancel(true);
+    } catch (UnsupportedOperationException e) {
+      LOGGER.fine("Stage of test " + result.className + " does not support cancellation");
+    }
+    completeTest(readyTest, result);
+  }
+
+  /**
+   * Called by the watchdog if a test does not finish in time. The thread dump is written to the
+   * test result folder, the test thread is interrupted and the test is reported with an error, so
+   * the other tests can go on. If the test is part of a batch, the rest of the batch is reported
+   * with an error, too, as the thread that should run them is stuck. If every test was completed
+   * in the meantime, the watchdog fired too late and the thread is left alone.
+   */
+  private void handleTestTimeout(final List<ReadyTest> readyTests,
+      final WatchedTestThread testThread) {
+    StackTraceElement[] stackTrace = null;
+    for (ReadyTest readyTest : readyTests) {
+      if (readyTest.completed.compareAndSet(false, true)) {
+        readyTest.timedOut = true;
+        boolean firstTimedOutTest = stackTrace == null;
+        if (firstTimedOutTest) {
+          stackTrace = testThread.thread.getStackTrace();
+        }
+        TestClassResult result = createTimeoutResult(readyTest, stackTrace);
+        if (firstTimedOutTest) {
+          writeThreadDump(readyTest, result, testThread.thread);
+        }
+        completeTest(readyTest, result);
+      }
+    }
+    if (stackTrace != null) {
+      testThread.interrupt();
     }
   }
 
@@ -292,6 +1015,77 @@ public class TestExtender {
    * Opens the trackers of test engines and test services.
    */
   public void open() {
+    if (blockingManager != null) {
+      shutdownBlocker = new TestEngineLaneShutdownBlocker();
+      shutdownBlockerSR = bundleContext.registerService(ShutdownBlocker.class, shutdownBlocker,
+          new Hashtable<String, Object>());
+    }
+
+    ResultUtil.setStackTraceRenderer(new StackTraceRenderer(
+        configuration.stackTraceFoldedPackages, configuration.stackTraceDeduplication));
+
+    if (TEST_RESULT_FOLDER_FILE != null) {
+      testSuiteProperties = new TestSuiteProperties(configuration.testResultProperties,
+          configuration.testResultPropertiesFilter);
+    }
+
+    if (configuration.testResultBinary) {
+      if (TEST_RESULT_FOLDER_FILE == null) {
+        LOGGER.warning("Results are not written in binary format as the '"
+            + TestRunnerConstants.PROP_TEST_RESULT_FOLDER + "' property is not specified");
+      } else {
+        binaryResultLogWriter = new BinaryResultLogWriter(new File(TEST_RESULT_FOLDER_FILE,
+            ResultUtil.generateFileNameWithoutExtension("testresults", null, true) + ".bin"),
+            RUN_RESULT_FILE_BUFFER_SIZE);
+      }
+    } else if (configuration.testResultXmlAppend) {
+      if (TEST_RESULT_FOLDER_FILE == null) {
+        LOGGER.warning("XML results are not appended to one file as the '"
+            + TestRunnerConstants.PROP_TEST_RESULT_FOLDER + "' property is not specified");
+      } else {
+        xmlTestSuitesWriter = new XmlTestSuitesWriter(new File(TEST_RESULT_FOLDER_FILE,
+            ResultUtil.generateFileNameWithoutExtension("testsuites", null, true) + ".xml"),
+            RUN_RESULT_FILE_BUFFER_SIZE);
+      }
+    }
+
+    if (configuration.testResultConsolidated && !configuration.testResultBinary
+        && (TEST_RESULT_FOLDER_FILE != null)) {
+      textResultLogWriter = new TextResultLogWriter(new File(TEST_RESULT_FOLDER_FILE,
+          ResultUtil.generateFileNameWithoutExtension("testresults", null, true) + ".txt"),
+          RUN_RESULT_FILE_BUFFER_SIZE);
+    }
+
+    testResultWriter = new TestResultWriter(() -> {
+      if (xmlTestSuitesWriter != null) {
+        xmlTestSuitesWriter.flush();
+      }
+      if (textResultLogWriter != null) {
+        textResultLogWriter.flush();
+      }
+      if (binaryResultLogWriter != null) {
+        binaryResultLogWriter.flush();
+      }
+    });
+    testResultWriter.open();
+    if (blockingManager != null) {
+      testResultWriterSR = bundleContext.registerService(ShutdownBlocker.class, testResultWriter,
+          new Hashtable<String, Object>());
+    }
+
+    resultSinkFanOut = new ResultSinkFanOut(bundleContext);
+    resultSinkFanOut.open();
+    if (blockingManager != null) {
+      resultSinkFanOutSR = bundleContext.registerService(ShutdownBlocker.class, resultSinkFanOut,
+          new Hashtable<String, Object>());
+    }
+
+    if (configuration.testWatch) {
+      testWatcher = new TestWatcher(bundleContext, configuration.testWatchDebounce,
+          this::getTrackedTests, this::rerunTest);
+      testWatcher.open();
+    }
+
     testServiceTracker = createTestServiceTracker();
     testServiceTracker.open();
 
@@ -299,70 +1093,602 @@ public class TestExtender {
         new ServiceTracker<>(bundleContext, TestEngine.class, new TestEngineTrackerCustomizer());
     testRunnerEngineTracker.open();
 
+    // Without an executor the tests run on the dispatcher thread. The executor, and with it the
+    // virtual threads, is needed to run tests in parallel, to leave a timed out test behind or to
+    // share the threads with the test cases (see PROP_TEST_VIRTUAL_THREADS).
+    int testCaseThreadCount = configuration.testMaxThreads - configuration.testParallelism;
+    if ((configuration.testParallelism > 1) || (configuration.testTimeout > 0)
+        || (testCaseThreadCount > 0)) {
+      testExecutor = TestExecutorFactory.createTestExecutor(configuration.virtualThreads);
+    }
+    if (testCaseThreadCount > 0) {
+      testCaseThreadPermits = new Semaphore(testCaseThreadCount);
+    }
+
+    if (configuration.testTimeout > 0) {
+      timeoutWatchdog = new ScheduledThreadPoolExecutor(1, (runnable) -> {
+        Thread thread = new Thread(runnable);
+        thread.setName("eosgi-testrunner-watchdog");
+        thread.setDaemon(true);
+        return thread;
+      });
+      timeoutWatchdog.setRemoveOnCancelPolicy(true);
+    }
+
     opened.set(true);
 
-    new Thread(() -> {
-      while (opened.get()) {
-        synchronized (mutex) {
-          processAvailableTestsWithAvailableEnginesInSync();
-          try {
-            mutex.wait();
-          } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException(e);
-          }
-        }
+    Thread dispatcherThread = new Thread(this::dispatchTests);
+    dispatcherThread.setName("eosgi-testrunner-dispatcher");
+    dispatcherThread.start();
+  }
+
+  /**
+   * Notes the arrival of a test service when arrivals are coalesced. Only the first arrival of a
+   * window wakes up the dispatcher, the following ones just extend the window. Must be called
+   * while holding the {@link #mutex}.
+   */
+  private void registerArrivalInSync() {
+    long now = System.nanoTime();
+    lastArrivalNanos = now;
+    if (!arrivalPending) {
+      arrivalPending = true;
+      firstPendingArrivalNanos = now;
+      mutex.notifyAll();
+    }
+  }
+
+  private void releaseTest(final ReadyTest readyTest) {
+    TestServiceWithReference test = readyTest.testServiceWithReference;
+    boolean rerunDeferred;
+    synchronized (mutex) {
+      rerunDeferred =
+          runningTestsByService.remove(test, readyTest) && deferredReruns.remove(test);
+    }
+    if (readyTest.batch.remainingTestCount.decrementAndGet() == 0) {
+      finishBatch(readyTest.batch);
+    }
+    if (rerunDeferred) {
+      rerunTest(test);
+    }
+  }
+
+  private void removeTest(final ServiceReference<Object> reference,
+      final Object service) {
+
+    Object engineTypeObject =
+        reference.getProperty(TestRunnerConstants.SERVICE_PROPERTY_TESTRUNNER_ENGINE);
+
+    String engine = String.valueOf(engineTypeObject);
+
+    synchronized (mutex) {
+      TestEngineLane lane = testEngineLanesByName.get(engine);
+      TestServiceWithReference test = new TestServiceWithReference(reference, service);
+      previousAttemptsByTest.remove(test);
+      deferredReruns.remove(test);
+      if (lane != null) {
+        lane.readyTests.remove(test);
+        updateBlockingInSync();
       }
-    }).start();
+    }
   }
 
-  private void processAvailableTestsWithAvailableEnginesInSync() {
-    Iterator<Entry<String, Set<TestServiceWithReference>>> iterator =
-        nonExecutedServicesByEngines.entrySet().iterator();
+  /**
+   * Re-runs a test in watch mode. The test is put into the ready queue only if its service is
+   * still tracked, so a service that was unregistered in the meantime does not come back. If the
+   * test is running, the re-run is deferred until the running attempt is completed, so the two
+   * attempts do not run in parallel.
+   */
+  private void rerunTest(final TestServiceWithReference test) {
+    String engine = resolveEngineOfTest(test);
+    if (engine == null) {
+      return;
+    }
+    synchronized (mutex) {
+      if (!opened.get() || (testServiceTracker.getService(test.reference) == null)) {
+        LOGGER.fine("Test is not registered anymore, it is not re-run: "
+            + test.reference.toString());
+        return;
+      }
+      if (runningTestsByService.containsKey(test)) {
+        LOGGER.fine("Test is running, it is re-run when it is completed: "
+            + test.reference.toString());
+        deferredReruns.add(test);
+        return;
+      }
+      addTestInSync(engine, test);
+    }
+  }
 
-    while (iterator.hasNext()) {
-      Entry<String, Set<TestServiceWithReference>> entry = iterator.next();
+  /**
+   * Resolves the engine of a test service.
+   *
+   * @return The name of the engine or <code>null</code> if the test should be ignored, as its
+   *         engine property is invalid or it belongs to another shard.
+   */
+  private String resolveEngineOfTest(final TestServiceWithReference test) {
+    ServiceReference<Object> reference = test.reference;
+    Object engineProp =
+        reference.getProperty(TestRunnerConstants.SERVICE_PROPERTY_TESTRUNNER_ENGINE);
 
-      TestEngine testEngine = testEngineByName.get(entry.getKey());
+    if ((engineProp == null) || !(engineProp instanceof String)) {
+      LOGGER.log(Level.WARNING,
+          "Unrecognized '" + TestRunnerConstants.SERVICE_PROPERTY_TESTRUNNER_ENGINE
+              + "' service property value for test. Are you sure the test engine is available?"
+              + " Ignoring: " + reference.toString());
+      return null;
+    }
 
-      if (testEngine != null) {
-        iterator.remove();
-        Set<TestServiceWithReference> testServiceWithReferences = entry.getValue();
-        for (TestServiceWithReference testServiceWithReference : testServiceWithReferences) {
-          Object testObject = testServiceWithReference.service;
-          ServiceReference<Object> reference = testServiceWithReference.reference;
+    if ((configuration.shardCount > 1)
+        && (resolveShardIndex(test, configuration.shardCount) != configuration.shardIndex)) {
+      LOGGER.fine("Test belongs to another shard. Ignoring: " + reference.toString());
+      if (testClassBlocker != null) {
+        testClassBlocker.handleTestClassOfOtherShard(test.service.getClass().getName());
+      }
+      return null;
+    }
+    return (String) engineProp;
+  }
 
-          TestExecutionContext testExecutionContext = new TestExecutionContext();
-          testExecutionContext.developmentMode = developmentMode;
-          TestClassResult result = testEngine.runTestsOfInstance(testObject,
-              extractServiceReferencePropsAsMap(reference), testExecutionContext);
+  private int resolveHighestReadyPriorityInSync(final List<TestEngineLane> lanes) {
+    int result = Integer.MIN_VALUE;
+    for (TestEngineLane lane : lanes) {
+      if (canStartTestInSync(lane)) {
+        result = Math.max(result, lane.readyTests.peek().getPriority());
+      }
+    }
+    return result;
+  }
 
-          dumpTestResults(reference, result);
+  /**
+   * Puts a failed test back into the ready queue of its lane if it has attempts left. The result
+   * of the failed attempt is not reported, it is added to the result of the last attempt. The
+   * failed test cases that the engine streamed during the failed attempt are added to the result
+   * of the attempt, so they appear in the flaky report, and the fragment files are dropped. A
+   * timed out test is not retried.
+   *
+   * @return <code>true</code> if the test is retried.
+   */
+  private boolean retryTest(final ReadyTest readyTest, final TestClassResult result) {
+    int attemptCount = readyTest.previousAttempts.size() + 1;
+    if (!ResultUtil.hasFailure(result) || (attemptCount > configuration.retryCount)) {
+      return false;
+    }
+    if (readyTest.timedOut) {
+      LOGGER.warning("Test " + result.className + " timed out in attempt " + attemptCount
+          + ". It is not retried as its thread might still be running.");
+      return false;
+    }
+    TestServiceWithReference test = readyTest.testServiceWithReference;
+    if (!opened.get() || (testServiceTracker.getService(test.reference) == null)) {
+      return false;
+    }
+
+    List<TestClassResult> attempts = new ArrayList<>(readyTest.previousAttempts);
+    attempts.add(result);
+    LOGGER.warning("Test " + result.className + " failed in attempt " + attemptCount + " of "
+        + (configuration.retryCount + 1) + ", retrying: " + test.reference.toString());
 
-          if (blockingManager != null) {
-            blockingManager.handleTestClassResult(result);
+    readyTest.testCaseSpool.close();
+    result.testCaseResults.addAll(readyTest.testCaseSpool.getFailedTestCaseResults());
+    readyTest.testCaseSpool.deleteFragmentFiles();
+
+    synchronized (mutex) {
+      previousAttemptsByTest.put(test, attempts);
+      readyTest.batch.lane.readyTests.add(test);
+      updateBlockingInSync();
+      mutex.notifyAll();
+    }
+    return true;
+  }
+
+  private void runBatch(final ReadyBatch readyBatch) {
+    List<ReadyTest> testsToRun = new ArrayList<>();
+    for (ReadyTest readyTest : readyBatch.tests) {
+      if (!completeTestFromCache(readyTest)) {
+        testsToRun.add(readyTest);
+      }
+    }
+
+    RuntimeException engineException = null;
+    try {
+      if (testsToRun.size() == 1) {
+        runTest(testsToRun.get(0));
+      } else if (testsToRun.size() > 1) {
+        runTestsWithBatchEngine((BatchTestEngine) readyBatch.testEngine, testsToRun);
+      }
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Error during running tests of engine "
+          + readyBatch.lane.engineName, e);
+      engineException = e;
+    } finally {
+      for (ReadyTest readyTest : testsToRun) {
+        abandonTest(readyTest, engineException);
+      }
+    }
+  }
+
+  private void runBatchInWorker(final ReadyBatch readyBatch) {
+    try {
+      runBatch(readyBatch);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Error during running tests of engine "
+          + readyBatch.lane.engineName, e);
+    }
+  }
+
+  private void runTest(final ReadyTest readyTest) {
+    readyTest.startTime = System.currentTimeMillis();
+    WatchedTestThread testThread = new WatchedTestThread(Thread.currentThread());
+    ScheduledFuture<?> watchdogFuture =
+        scheduleWatchdog(Collections.singletonList(readyTest), testThread);
+
+    TestClassResult result;
+    try {
+      Object testObject = readyTest.testServiceWithReference.service;
+      ServiceReference<Object> reference = readyTest.testServiceWithReference.reference;
+
+      result = readyTest.batch.testEngine.runTestsOfInstance(testObject,
+          extractServiceReferencePropsAsMap(reference),
+          createTestExecutionContext(Collections.singletonList(readyTest)));
+    } finally {
+      cancelWatchdog(watchdogFuture);
+      testThread.finish();
+    }
+
+    if (result != null) {
+      completeTestWithResult(readyTest, result);
+    }
+  }
+
+  /**
+   * Runs several tests in one call of a {@link BatchTestEngine}. The results are reported as soon
+   * as they are available in the returned stream. The timeout applies to every test separately,
+   * so the watchdog is restarted for the tests that are not completed yet when a result arrives.
+   * If the stream ends before a result was returned for every instance, the tests without a
+   * result are reported with an error.
+   */
+  private void runTestsWithBatchEngine(final BatchTestEngine batchTestEngine,
+      final List<ReadyTest> readyTests) {
+
+    List<TestInstance> testInstances = new ArrayList<>();
+    long startTime = System.currentTimeMillis();
+    for (ReadyTest readyTest : readyTests) {
+      readyTest.startTime = startTime;
+      testInstances.add(createTestInstance(readyTest));
+    }
+
+    TestExecutionContext testExecutionContext = createTestExecutionContext(readyTests);
+    WatchedTestThread testThread = new WatchedTestThread(Thread.currentThread());
+    ScheduledFuture<?> watchdogFuture = scheduleWatchdog(readyTests, testThread);
+    try (Stream<TestClassResult> resultStream =
+        batchTestEngine.runTestsOfInstances(testInstances, testExecutionContext)) {
+
+      Iterator<TestClassResult> resultIterator = resultStream.iterator();
+      int n = readyTests.size();
+      int resultCount = 0;
+      while ((resultCount < n) && resultIterator.hasNext()) {
+        TestClassResult result = resultIterator.next();
+        cancelWatchdog(watchdogFuture);
+        if (result != null) {
+          completeTestWithResult(readyTests.get(resultCount), result);
+        }
+        resultCount++;
+
+        List<ReadyTest> remainingTests = new ArrayList<>();
+        long nextStartTime = System.currentTimeMillis();
+        for (ReadyTest remainingTest : readyTests.subList(resultCount, n)) {
+          if (!remainingTest.completed.get()) {
+            remainingTest.startTime = nextStartTime;
+            remainingTests.add(remainingTest);
           }
         }
+        watchdogFuture = scheduleWatchdog(remainingTests, testThread);
+      }
+
+      if (resultCount < n) {
+        cancelWatchdog(watchdogFuture);
+        watchdogFuture = null;
+        IllegalStateException missingResultException = new IllegalStateException(
+            "The batch test engine returned " + resultCount + " results for " + n
+                + " test instances");
+        for (ReadyTest readyTest : readyTests.subList(resultCount, n)) {
+          abandonTest(readyTest, missingResultException);
+        }
       }
+    } finally {
+      cancelWatchdog(watchdogFuture);
+      testThread.finish();
     }
   }
 
-  private void removeTest(final ServiceReference<Object> reference,
-      final Object service) {
+  private ScheduledFuture<?> scheduleWatchdog(final List<ReadyTest> readyTests,
+      final WatchedTestThread testThread) {
+    if ((timeoutWatchdog == null) || readyTests.isEmpty()) {
+      return null;
+    }
+    return timeoutWatchdog.schedule(() -> handleTestTimeout(readyTests, testThread),
+        configuration.testTimeout, TimeUnit.MILLISECONDS);
+  }
 
-    Object engineTypeObject =
-        reference.getProperty(TestRunnerConstants.SERVICE_PROPERTY_TESTRUNNER_ENGINE);
+  /**
+   * Starts an asynchronous test on the dispatcher thread. The test is completed and its capacity
+   * is released by the thread that completes the stage returned by the engine. If the stage
+   * completes exceptionally, the test is reported with an error that contains the exception of
+   * the stage. If the watchdog cancelled the stage, the timeout is already reported.
+   */
+  private void startAsyncTest(final ReadyTest readyTest) {
+    if (completeTestFromCache(readyTest)) {
+      return;
+    }
+    readyTest.startTime = System.currentTimeMillis();
+    AsyncTestEngine asyncTestEngine = (AsyncTestEngine) readyTest.batch.testEngine;
+    ServiceReference<Object> reference = readyTest.testServiceWithReference.reference;
 
-    String engine = String.valueOf(engineTypeObject);
+    CompletionStage<TestClassResult> stage;
+    try {
+      stage = asyncTestEngine.runTestsOfInstanceAsync(readyTest.testServiceWithReference.service,
+          extractServiceReferencePropsAsMap(reference),
+          createTestExecutionContext(Collections.singletonList(readyTest)));
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Error during starting test " + reference.toString(), e);
+      abandonTest(readyTest, e);
+      return;
+    }
+
+    ScheduledFuture<?> watchdogFuture = null;
+    if (timeoutWatchdog != null) {
+      watchdogFuture = timeoutWatchdog.schedule(() -> handleAsyncTestTimeout(readyTest, stage),
+          configuration.testTimeout, TimeUnit.MILLISECONDS);
+    }
+    ScheduledFuture<?> finalWatchdogFuture = watchdogFuture;
 
+    stage.whenComplete((result, throwable) -> {
+      cancelWatchdog(finalWatchdogFuture);
+      if ((throwable == null) && (result != null)) {
+        completeTestWithResult(readyTest, result);
+        return;
+      }
+      Throwable cause = throwable;
+      if ((cause instanceof CompletionException) && (cause.getCause() != null)) {
+        cause = cause.getCause();
+      }
+      if ((cause != null) && !(cause instanceof CancellationException)) {
+        LOGGER.log(Level.SEVERE, "Error during running test " + reference.toString(), cause);
+      }
+      abandonTest(readyTest, cause);
+    });
+  }
+
+  /**
+   * Takes tests out of the ready queues of the lanes while there is free capacity. The lanes are
+   * visited in a round-robin way and at most one batch is taken from a lane in one round. A lane
+   * is skipped while another lane that can start a test has a ready test with higher priority, so
+   * the priorities are honoured between the engines, too. If the
+   * engine of a lane is a {@link BatchTestEngine}, all ready tests of the lane are taken in one
+   * batch, otherwise a batch contains one test. Batches of {@link AsyncTestEngine}s are limited
+   * by {@link TestRunnerConfiguration#asyncTestMaxInFlight} instead of
+   * {@link TestRunnerConfiguration#testParallelism} as they do not occupy a thread. No tests are
+   * taken after a failure in fail-fast mode. Must be called while holding the {@link #mutex}.
+   *
+   * @return The batches that can be executed.
+   */
+  private List<ReadyBatch> takeReadyBatchesInSync() {
+    List<ReadyBatch> result = new ArrayList<>();
+    if (failFastTriggered) {
+      return result;
+    }
+    List<TestEngineLane> lanes = new ArrayList<>(testEngineLanesByName.values());
+    int laneCount = lanes.size();
+    int idleLaneCount = 0;
+
+    while (idleLaneCount < laneCount) {
+      laneCursor = laneCursor % laneCount;
+      TestEngineLane lane = lanes.get(laneCursor);
+      laneCursor++;
+
+      boolean async = lane.testEngine instanceof AsyncTestEngine;
+
+      if (canStartTestInSync(lane)
+          && (lane.readyTests.peek().getPriority() >= resolveHighestReadyPriorityInSync(lanes))) {
+        ReadyBatch readyBatch = new ReadyBatch(lane);
+        addReadyTestInSync(readyBatch, lane.readyTests.poll());
+        if (!async && (lane.testEngine instanceof BatchTestEngine)) {
+          while (!lane.readyTests.isEmpty()) {
+            addReadyTestInSync(readyBatch, lane.readyTests.poll());
+          }
+        }
+        result.add(readyBatch);
+        lane.runningTestCount++;
+        if (async) {
+          runningAsyncTestCount++;
+        } else {
+          runningTestCount++;
+        }
+        idleLaneCount = 0;
+      } else {
+        idleLaneCount++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Stops dispatching new tests after a failure in fail-fast mode. The blocking manager is
+   * released on a separate thread after the running tests finished and their results are written
+   * and delivered to the result sinks, so the framework does not stop with partial result files.
+   * The thread cannot be the caller, as the failed test itself is still running.
+   */
+  private void triggerFailFast(final TestClassResult failedTestClassResult) {
     synchronized (mutex) {
-      Set<TestServiceWithReference> tests = nonExecutedServicesByEngines.get(engine);
-      if (tests != null) {
-        tests.remove(new TestServiceWithReference(reference, service));
-        if (tests.isEmpty()) {
-          nonExecutedServicesByEngines.remove(engine);
+      if (failFastTriggered) {
+        return;
+      }
+      failFastTriggered = true;
+      updateBlockingInSync();
+      mutex.notifyAll();
+    }
+    LOGGER.warning("Test class " + failedTestClassResult.className
+        + " failed in fail-fast mode. No more tests are started.");
+    if (blockingManager == null) {
+      return;
+    }
+    Thread failFastThread = new Thread(() -> {
+      synchronized (mutex) {
+        while (((runningTestCount > 0) || (runningAsyncTestCount > 0)) && opened.get()) {
+          waitInSync(0);
+        }
+      }
+      testResultWriter.awaitPendingTasks();
+      resultSinkFanOut.awaitPendingDeliveries();
+      blockingManager.release("Test class " + failedTestClassResult.className + " failed");
+    });
+    failFastThread.setName("eosgi-testrunner-fail-fast");
+    failFastThread.setDaemon(true);
+    failFastThread.start();
+  }
+
+  private void updateBlockingInSync() {
+    if (shutdownBlocker == null) {
+      return;
+    }
+    boolean busy = (runningTestCount > 0) || (runningAsyncTestCount > 0);
+    if (!failFastTriggered) {
+      for (TestEngineLane lane : testEngineLanesByName.values()) {
+        busy = busy || lane.isBusy();
+      }
+    }
+    shutdownBlocker.updateBlocking(busy);
+  }
+
+  /**
+   * Waits until no test service arrived within the coalescing window, so the tests that are
+   * registered together are scheduled together. The wait ends at the latest
+   * {@link #MAX_ARRIVAL_QUIESCENCE_WINDOWS} windows after the first pending arrival. Must be called
+   * while holding the {@link #mutex}.
+   */
+  private void waitForArrivalQuiescenceInSync() {
+    long windowNanos = TimeUnit.MILLISECONDS.toNanos(configuration.testArrivalQuiescence);
+    while (arrivalPending && opened.get()) {
+      long deadline = Math.min(lastArrivalNanos + windowNanos,
+          firstPendingArrivalNanos + (windowNanos * MAX_ARRIVAL_QUIESCENCE_WINDOWS));
+      long remainingNanos = deadline - System.nanoTime();
+      if (remainingNanos <= 0) {
+        arrivalPending = false;
+      } else {
+        waitInSync(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos)));
+      }
+    }
+  }
+
+  private void waitInSync(final long timeout) {
+    try {
+      mutex.wait(timeout);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes the result of a test into the result files and to the log. The test cases that the
+   * engine reported one by one are merged from the fragment files of the {@link TestCaseSpool}.
+   * The failed ones are appended to the log from the memory of the spool, so they are logged even
+   * if there is no result folder. If the results are written in binary format, only a summary is
+   * logged for the test classes that passed, so their text result is never rendered.
+   * Called on the thread of the {@link TestResultWriter}.
+   */
+  private void writeTestResults(final ReadyTest readyTest,
+      final TestClassResult testClassResult) {
+
+    ServiceReference<Object> testServiceReference = readyTest.testServiceWithReference.reference;
+    TestCaseSpool testCaseSpool = readyTest.testCaseSpool;
+
+    String testId = ResultUtil.getTestIdFromReference(testServiceReference);
+    if (binaryResultLogWriter != null) {
+      binaryResultLogWriter.writeTestResult(testClassResult, testId,
+          testCaseSpool.getBinaryFragmentFile(), testCaseSpool.getTestCaseCount());
+      testCaseSpool.deleteFragmentFiles();
+    } else if (TEST_RESULT_FOLDER_FILE != null) {
+      String fileName = testCaseSpool.getFileNameWithoutExtension();
+      if (fileName == null) {
+        fileName =
+            ResultUtil.generateFileNameWithoutExtension(testClassResult.className, testId, true);
+      }
+
+      if (textResultLogWriter != null) {
+        textResultLogWriter.writeTestResult(testClassResult, testId,
+            testCaseSpool.getTextFragment());
+      } else {
+        File textFragmentFile = testCaseSpool.getTextFragmentFile();
+        File textFile = new File(TEST_RESULT_FOLDER_FILE, fileName + ".txt");
+        try {
+          if (textFragmentFile != null) {
+            ResultUtil.writeTextResultToFile(testClassResult, testId, textFile, true,
+                textFragmentFile);
+          } else {
+            ResultUtil.writeTextResultToFile(testClassResult, testId, textFile, true);
+          }
+        } catch (IOException e) {
+          LOGGER.log(Level.SEVERE, "Error during text test result " + testClassResult.toString()
+              + " to file " + textFile.getAbsolutePath(), e);
         }
       }
+
+      String propertiesXml = testSuiteProperties.nextPropertiesXml();
+      if (xmlTestSuitesWriter != null) {
+        xmlTestSuitesWriter.writeTestSuite(testClassResult, propertiesXml,
+            testCaseSpool.getXmlFragment());
+      } else {
+        File xmlFile = new File(TEST_RESULT_FOLDER_FILE, fileName + ".xml");
+        ResultUtil.writeXmlResultToFile(testClassResult, xmlFile, propertiesXml,
+            testCaseSpool.getXmlFragmentFile());
+      }
+      testCaseSpool.deleteFragmentFiles();
+    }
+
+    if (!LOGGER.isLoggable(Level.INFO)) {
+      return;
+    }
+    if ((binaryResultLogWriter != null) && !ResultUtil.hasFailure(testClassResult)) {
+      LOGGER.info(ResultUtil.createTextSummary(testClassResult, testId));
+      return;
+    }
+    try {
+      StringWriter sw = new StringWriter();
+      sw.write("\n");
+      Map<String, String> writtenStackTraces = ResultUtil.newWrittenStackTraces();
+      ResultUtil.dumpTextResult(testClassResult, testId, writtenStackTraces, sw);
+      for (TestCaseResult failedTestCaseResult : testCaseSpool.getFailedTestCaseResults()) {
+        ResultUtil.dumpTextTestCaseResult(failedTestCaseResult, writtenStackTraces, sw);
+      }
+      LOGGER.info(sw.toString());
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error dumping text result to standard output", e);
     }
   }
+
+  private void writeThreadDump(final ReadyTest readyTest, final TestClassResult result,
+      final Thread testThread) {
+    String threadDump = new ThreadUtil().dumpThreads(testThread);
+    String testId = ResultUtil.getTestIdFromReference(readyTest.testServiceWithReference.reference);
+
+    LOGGER.severe("Test " + result.className + " (" + testId + ") did not finish within "
+        + configuration.testTimeout + " ms"
+        + ((testThread != null) ? ". Interrupting thread " + testThread.getName() : ""));
+
+    if (TEST_RESULT_FOLDER_FILE != null) {
+      File threadDumpFile = new File(TEST_RESULT_FOLDER_FILE,
+          ResultUtil.generateFileNameWithoutExtension(result.className, testId, true)
+              + "-threaddump.txt");
+      try {
+        ResultUtil.writeTextToFile(threadDump, threadDumpFile);
+      } catch (IOException e) {
+        LOGGER.log(Level.SEVERE,
+            "Error during writing thread dump to file " + threadDumpFile.getAbsolutePath(), e);
+      }
+    } else {
+      LOGGER.severe(threadDump);
+    }
+  }
+
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Content addressable cache of the results of successful test runs. The key of a result is the
+ * checksum of the bundle of the test service together with all bundles in its resolved wiring
+ * closure, the eosgi.testId service property, the class of the test service and the name of the
+ * engine. If nothing changed in these since a successful run, the cached result can be reported
+ * instead of running the test again.
+ */
+class TestResultCache {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final String CACHE_FILE_EXTENSION = ".result";
+
+  private static final String CACHE_FOLDER_NAME = "eosgi-test-cache";
+
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+
+  private static final Logger LOGGER = Logger.getLogger(TestResultCache.class.getName());
+
+  /**
+   * Collects the bundle of a test and all bundles that it is wired to directly or indirectly.
+   *
+   * @param bundle
+   *          The bundle of the test.
+   * @return The bundle and the bundles of its wiring closure.
+   */
+  static List<Bundle> collectWiringClosure(final Bundle bundle) {
+    List<Bundle> result = new ArrayList<>();
+    Set<Long> visitedBundleIds = new HashSet<>();
+    Queue<Bundle> bundlesToVisit = new ArrayDeque<>();
+    bundlesToVisit.add(bundle);
+    visitedBundleIds.add(bundle.getBundleId());
+
+    while (!bundlesToVisit.isEmpty()) {
+      Bundle currentBundle = bundlesToVisit.poll();
+      result.add(currentBundle);
+
+      BundleWiring wiring = currentBundle.adapt(BundleWiring.class);
+      List<BundleWire> requiredWires = (wiring != null) ? wiring.getRequiredWires(null) : null;
+      if (requiredWires == null) {
+        continue;
+      }
+      for (BundleWire wire : requiredWires) {
+        BundleWiring providerWiring = wire.getProviderWiring();
+        if (providerWiring != null) {
+          Bundle providerBundle = providerWiring.getBundle();
+          if (visitedBundleIds.add(providerBundle.getBundleId())) {
+            bundlesToVisit.add(providerBundle);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(DIGEST_ALGORITHM + " algorithm is not available", e);
+    }
+  }
+
+  private static String toHex(final byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * The checksums of the bundles by the id and last modification time of the bundles, so the
+   * content of a bundle is read only once while it is not updated.
+   */
+  private final Map<String, String> bundleChecksums = new ConcurrentHashMap<>();
+
+  private final File cacheFolder;
+
+  private final boolean developmentMode;
+
+  /**
+   * Constructor.
+   *
+   * @param testResultFolder
+   *          The folder of the test results. The cache is stored in a subfolder of it.
+   * @param developmentMode
+   *          Whether the test runner is in development mode. This is part of the key, as different
+   *          test cases are executed in development mode.
+   */
+  TestResultCache(final File testResultFolder, final boolean developmentMode) {
+    this.cacheFolder = new File(testResultFolder, CACHE_FOLDER_NAME);
+    this.developmentMode = developmentMode;
+  }
+
+  private String calculateBundleChecksum(final Bundle bundle) throws IOException {
+    MessageDigest digest = createDigest();
+    digest.update((bundle.getSymbolicName() + ";" + bundle.getVersion())
+        .getBytes(StandardCharsets.UTF_8));
+
+    if (bundle.getBundleId() == 0) {
+      return toHex(digest.digest());
+    }
+
+    Enumeration<URL> entries = bundle.findEntries("/", "*", true);
+    List<URL> entryList = (entries != null) ? Collections.list(entries) : new ArrayList<>();
+    entryList.sort((url1, url2) -> url1.getPath().compareTo(url2.getPath()));
+
+    byte[] buffer = new byte[BUFFER_SIZE];
+    for (URL entry : entryList) {
+      String path = entry.getPath();
+      digest.update(path.getBytes(StandardCharsets.UTF_8));
+      if (!path.endsWith("/")) {
+        try (InputStream in = entry.openStream()) {
+          int read = in.read(buffer);
+          while (read >= 0) {
+            digest.update(buffer, 0, read);
+            read = in.read(buffer);
+          }
+        }
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Returns the cached result of a successful test run.
+   *
+   * @param key
+   *          The key of the test that is resolved by {@link #resolveKey(String,
+   *          TestServiceWithReference)}.
+   * @return The cached result or <code>null</code> if there is no result for the key.
+   */
+  TestClassResult get(final String key) {
+    File cacheFile = new File(cacheFolder, key + CACHE_FILE_EXTENSION);
+    if (!cacheFile.exists()) {
+      return null;
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+      return TestClassResultCodec.read(in);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Cannot read cached test result: " + cacheFile.getAbsolutePath(),
+          e);
+      return null;
+    }
+  }
+
+  private String getBundleChecksum(final Bundle bundle) throws IOException {
+    String checksumKey = bundle.getBundleId() + ":" + bundle.getLastModified();
+    String checksum = bundleChecksums.get(checksumKey);
+    if (checksum == null) {
+      checksum = calculateBundleChecksum(bundle);
+      bundleChecksums.put(checksumKey, checksum);
+    }
+    return checksum;
+  }
+
+  /**
+   * Stores the result of a successful test run.
+   *
+   * @param key
+   *          The key of the test that is resolved by {@link #resolveKey(String,
+   *          TestServiceWithReference)}.
+   * @param testClassResult
+   *          The result of the test. It must not have failures or errors.
+   */
+  void put(final String key, final TestClassResult testClassResult) {
+    if (!cacheFolder.exists() && !cacheFolder.mkdirs()) {
+      LOGGER.warning("Cannot create test cache folder: " + cacheFolder.getAbsolutePath());
+      return;
+    }
+    File cacheFile = new File(cacheFolder, key + CACHE_FILE_EXTENSION);
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)))) {
+      TestClassResultCodec.write(testClassResult, out);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Cannot write cached test result: " + cacheFile.getAbsolutePath(),
+          e);
+    }
+  }
+
+  /**
+   * Calculates the cache key of a test.
+   *
+   * @param engineName
+   *          The name of the engine that runs the test.
+   * @param test
+   *          The test service.
+   * @return The key or <code>null</code> if it cannot be calculated. In that case the test should
+   *         run without using the cache.
+   */
+  String resolveKey(final String engineName, final TestServiceWithReference test) {
+    Bundle testBundle = test.reference.getBundle();
+    if (testBundle == null) {
+      return null;
+    }
+    try {
+      List<String> bundleChecksumLines = new ArrayList<>();
+      for (Bundle bundle : collectWiringClosure(testBundle)) {
+        bundleChecksumLines.add(bundle.getSymbolicName() + ";" + getBundleChecksum(bundle));
+      }
+      Collections.sort(bundleChecksumLines);
+
+      StringBuilder sb = new StringBuilder();
+      sb.append("engine=").append(engineName).append('\n');
+      sb.append("testId=").append(ResultUtil.getTestIdFromReference(test.reference)).append('\n');
+      sb.append("class=").append(test.service.getClass().getName()).append('\n');
+      sb.append("developmentMode=").append(developmentMode).append('\n');
+      for (String bundleChecksumLine : bundleChecksumLines) {
+        sb.append(bundleChecksumLine).append('\n');
+      }
+      return toHex(createDigest().digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+    } catch (IOException | RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Cannot calculate cache key of test " + test.reference, e);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.osgi.dev.testrunner.blocking.AbstractShutdownBlocker;
+
+/**
+ * Writes the results of test classes on a dedicated thread, so the dispatcher can start the next
+ * test while the previous results are written. The write tasks are queued in a bounded queue.
+ * If the queue is full, the thread that submits a result waits, so a slow disk slows down the
+ * tests instead of piling up results in memory. The tasks are taken in batches and the flush
+ * action is called after every batch. The framework is not stopped while there are results that
+ * are not written yet.
+ */
+class TestResultWriter extends AbstractShutdownBlocker {
+
+  private static final Logger LOGGER = Logger.getLogger(TestResultWriter.class.getName());
+
+  /**
+   * The maximum number of write tasks that are executed before the flush action is called.
+   */
+  private static final int MAX_BATCH_SIZE = 64;
+
+  /**
+   * The number of write tasks that can wait in the queue.
+   */
+  private static final int QUEUE_CAPACITY = 256;
+
+  private boolean closed = false;
+
+  private final Runnable flushAction;
+
+  private int pendingTaskCount = 0;
+
+  private final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+  private Thread writerThread;
+
+  /**
+   * Constructor.
+   *
+   * @param flushAction
+   *          The action that is called after every batch of write tasks.
+   */
+  TestResultWriter(final Runnable flushAction) {
+    this.flushAction = flushAction;
+  }
+
+  /**
+   * Waits until every result that was submitted before is written. The writer thread keeps
+   * running.
+   */
+  void awaitPendingTasks() {
+    synchronized (this) {
+      while (pendingTaskCount > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          LOGGER.warning("Interrupted while waiting for " + pendingTaskCount
+              + " test results to be written");
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits until every submitted result is written and stops the writer thread. Results that are
+   * submitted after this call are written on the thread of the caller.
+   */
+  void close() {
+    synchronized (this) {
+      closed = true;
+      while (pendingTaskCount > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          LOGGER.warning("Interrupted while waiting for " + pendingTaskCount
+              + " test results to be written");
+          break;
+        }
+      }
+    }
+    if (writerThread != null) {
+      writerThread.interrupt();
+    }
+  }
+
+  private void finishTasks(final int taskCount) {
+    synchronized (this) {
+      pendingTaskCount -= taskCount;
+      if (pendingTaskCount == 0) {
+        unblock();
+        notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void logBlockCauses(final StringBuilder sb) {
+    sb.append("  Test results waiting to be written: ").append(pendingTaskCount).append("\n");
+  }
+
+  /**
+   * Starts the writer thread.
+   */
+  void open() {
+    writerThread = new Thread(this::writeResults);
+    writerThread.setName("eosgi-testrunner-result-writer");
+    writerThread.start();
+  }
+
+  private void runTask(final Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Error during writing test result", e);
+    }
+  }
+
+  /**
+   * Queues a task that writes a test result. The writer blocks the shutdown of the framework
+   * until the task is executed.
+   *
+   * @param task
+   *          The task that writes the result.
+   */
+  void submit(final Runnable task) {
+    boolean queued;
+    synchronized (this) {
+      queued = !closed;
+      if (queued) {
+        pendingTaskCount++;
+        block();
+      }
+    }
+    if (!queued) {
+      runTask(task);
+      flushAction.run();
+      return;
+    }
+    try {
+      queue.put(task);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      runTask(task);
+      flushAction.run();
+      finishTasks(1);
+    }
+  }
+
+  private void writeResults() {
+    List<Runnable> batch = new ArrayList<>();
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+      for (Runnable task : batch) {
+        runTask(task);
+      }
+      flushAction.run();
+      finishTasks(batch.size());
+      batch.clear();
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+
+/**
+ * Stores the data of the previous test runs in the test result folder, so the dispatcher can
+ * decide in which order the tests of the next run should be executed. The data of a test is
+ * stored both by the class of the test service object and by the class together with the
+ * eosgi.testId service property.
+ */
+class TestRunHistory {
+
+  private static final String DURATION_KEY_PREFIX = "duration.";
+
+  private static final String FAILED_KEY_PREFIX = "failed.";
+
+  private static final String HISTORY_FILE_NAME = "eosgi-test-history.properties";
+
+  private static final Logger LOGGER = Logger.getLogger(TestRunHistory.class.getName());
+
+  private static final long UNKNOWN_DURATION = -1;
+
+  private static String resolveClassKey(final TestServiceWithReference test) {
+    return test.service.getClass().getName();
+  }
+
+  private static String resolveTestIdKey(final TestServiceWithReference test) {
+    String testId = ResultUtil.getTestIdFromReference(test.reference);
+    return resolveClassKey(test) + "#" + testId;
+  }
+
+  /**
+   * The data of the current run. It is merged into the history file when the history is saved.
+   */
+  private final Properties currentRun = new Properties();
+
+  /**
+   * The file that the history is read from and written to or <code>null</code> if there is no test
+   * result folder.
+   */
+  private final File historyFile;
+
+  /**
+   * The data of the previous runs. It is not modified during the run, so the order of the tests
+   * that are waiting in a queue does not change.
+   */
+  private final Properties previousRuns = new Properties();
+
+  /**
+   * Constructor that loads the history of the previous runs.
+   *
+   * @param testResultFolder
+   *          The folder where the history file is stored or <code>null</code> if the history
+   *          should not be persisted.
+   */
+  TestRunHistory(final File testResultFolder) {
+    if (testResultFolder != null) {
+      historyFile = new File(testResultFolder, HISTORY_FILE_NAME);
+      load();
+    } else {
+      historyFile = null;
+    }
+  }
+
+  /**
+   * Creates the comparator that defines the order of the tests in the ready queues. Tests with
+   * higher priority always come first. Within the same priority the tests that failed in the
+   * previous run come first, so a broken build gives a signal as soon as possible.
+   * They are followed by the tests without history, as their duration cannot be estimated. After
+   * them the tests run in the descending order of their durations in the previous run, so the slow
+   * tests do not land at the tail of the run. Tests with the same expected duration run in the
+   * order of their service registration.
+   *
+   * @return The comparator.
+   */
+  Comparator<TestServiceWithReference> createSchedulingComparator() {
+    return (test1, test2) -> {
+      int priority1 = test1.getPriority();
+      int priority2 = test2.getPriority();
+      if (priority1 != priority2) {
+        return Integer.compare(priority2, priority1);
+      }
+
+      boolean failed1 = hasFailedPreviously(test1);
+      boolean failed2 = hasFailedPreviously(test2);
+      if (failed1 != failed2) {
+        return failed1 ? -1 : 1;
+      }
+
+      long duration1 = getExpectedDuration(test1);
+      long duration2 = getExpectedDuration(test2);
+
+      if (duration1 != duration2) {
+        if (duration1 == UNKNOWN_DURATION) {
+          return -1;
+        }
+        if (duration2 == UNKNOWN_DURATION) {
+          return 1;
+        }
+        return Long.compare(duration2, duration1);
+      }
+      return test2.reference.compareTo(test1.reference);
+    };
+  }
+
+  /**
+   * Returns the duration of the test in the previous run.
+   *
+   * @param test
+   *          The test service.
+   * @return The duration in milliseconds or {@value #UNKNOWN_DURATION} if the test has not run
+   *         before.
+   */
+  long getExpectedDuration(final TestServiceWithReference test) {
+    String duration = previousRuns.getProperty(DURATION_KEY_PREFIX + resolveTestIdKey(test));
+    if (duration == null) {
+      duration = previousRuns.getProperty(DURATION_KEY_PREFIX + resolveClassKey(test));
+    }
+    if (duration == null) {
+      return UNKNOWN_DURATION;
+    }
+    try {
+      return Long.parseLong(duration);
+    } catch (NumberFormatException e) {
+      return UNKNOWN_DURATION;
+    }
+  }
+
+  /**
+   * Checks whether the test failed in the previous run.
+   *
+   * @param test
+   *          The test service.
+   * @return <code>true</code> if there was a failure or error in the test during the previous run.
+   */
+  boolean hasFailedPreviously(final TestServiceWithReference test) {
+    String failed = previousRuns.getProperty(FAILED_KEY_PREFIX + resolveTestIdKey(test));
+    if (failed == null) {
+      failed = previousRuns.getProperty(FAILED_KEY_PREFIX + resolveClassKey(test));
+    }
+    return Boolean.parseBoolean(failed);
+  }
+
+  private void load() {
+    if (!historyFile.exists()) {
+      return;
+    }
+    try (InputStream in = new FileInputStream(historyFile)) {
+      previousRuns.load(in);
+    } catch (IOException | IllegalArgumentException e) {
+      LOGGER.log(Level.WARNING,
+          "Cannot read test history file, tests are not ordered based on previous runs: "
+              + historyFile.getAbsolutePath(),
+          e);
+    }
+  }
+
+  /**
+   * Records the result of a test of the current run.
+   *
+   * @param test
+   *          The test service that was executed.
+   * @param testClassResult
+   *          The result of the test.
+   */
+  synchronized void recordResult(final TestServiceWithReference test,
+      final TestClassResult testClassResult) {
+
+    long duration = Math.max(0, testClassResult.finishTime - testClassResult.startTime);
+    currentRun.setProperty(DURATION_KEY_PREFIX + resolveTestIdKey(test), String.valueOf(duration));
+
+    String classKey = DURATION_KEY_PREFIX + resolveClassKey(test);
+    String classDuration = currentRun.getProperty(classKey);
+    if ((classDuration == null) || (Long.parseLong(classDuration) < duration)) {
+      currentRun.setProperty(classKey, String.valueOf(duration));
+    }
+
+    boolean failed = ResultUtil.hasFailure(testClassResult);
+    currentRun.setProperty(FAILED_KEY_PREFIX + resolveTestIdKey(test), String.valueOf(failed));
+
+    String classFailedKey = FAILED_KEY_PREFIX + resolveClassKey(test);
+    if (failed || !Boolean.parseBoolean(currentRun.getProperty(classFailedKey))) {
+      currentRun.setProperty(classFailedKey, String.valueOf(failed));
+    }
+  }
+
+  /**
+   * Writes the history of the previous runs together with the data of the current run into the
+   * history file.
+   */
+  synchronized void save() {
+    if ((historyFile == null) || currentRun.isEmpty()) {
+      return;
+    }
+    Properties history = new Properties();
+    history.putAll(previousRuns);
+    history.putAll(currentRun);
+
+    File parentFolder = historyFile.getParentFile();
+    if (!parentFolder.exists() && !parentFolder.mkdirs()) {
+      LOGGER.warning("Cannot create test result folder: " + parentFolder);
+      return;
+    }
+    try (OutputStream out = new FileOutputStream(historyFile)) {
+      history.store(out, "Data of previous test runs that is used to order the tests");
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Cannot write test history file: " + historyFile.getAbsolutePath(),
+          e);
+    }
+  }
+}
@@ -23,10 +23,14 @@ import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.everit.osgi.dev.testrunner.TestRunnerConstants;
 import org.everit.osgi.dev.testrunner.blocking.ShutdownBlocker;
@@ -190,6 +194,173 @@ public class TestRunnerActivator implements BundleActivator {
     }
   }
 
+  private static TestRunnerConfiguration resolveConfiguration(final BundleContext context) {
+    TestRunnerConfiguration configuration = new TestRunnerConfiguration();
+
+    configuration.asyncTestMaxInFlight =
+        resolveIntProperty(context, TestRunnerConstants.PROP_ASYNC_TEST_MAX_IN_FLIGHT, 16, 1);
+
+    configuration.developmentMode =
+        Boolean.parseBoolean(context.getProperty(TestRunnerConstants.PROP_DEVELOPMENT_MODE));
+
+    configuration.failFast =
+        Boolean.parseBoolean(context.getProperty(TestRunnerConstants.PROP_FAIL_FAST));
+
+    configuration.retryCount =
+        resolveIntProperty(context, TestRunnerConstants.PROP_RETRY_COUNT, 0, 0);
+
+    configuration.shardCount =
+        resolveIntProperty(context, TestRunnerConstants.PROP_SHARD_COUNT, 1, 1);
+
+    configuration.shardIndex =
+        resolveIntProperty(context, TestRunnerConstants.PROP_SHARD_INDEX, 0, 0);
+
+    if (configuration.shardIndex >= configuration.shardCount) {
+      LOGGER.warning("Value of property '" + TestRunnerConstants.PROP_SHARD_INDEX
+          + "' must be less than the value of property '" + TestRunnerConstants.PROP_SHARD_COUNT
+          + "'. Running all tests without sharding.");
+      configuration.shardCount = 1;
+      configuration.shardIndex = 0;
+    }
+
+    configuration.stackTraceDeduplication = Boolean.parseBoolean(
+        context.getProperty(TestRunnerConstants.PROP_STACK_TRACE_DEDUPLICATION));
+
+    configuration.stackTraceFoldedPackages = resolveStackTraceFoldedPackages(context);
+
+    configuration.testParallelism =
+        resolveIntProperty(context, TestRunnerConstants.PROP_TEST_PARALLELISM, 1, 1);
+
+    configuration.testArrivalQuiescence =
+        resolveIntProperty(context, TestRunnerConstants.PROP_TEST_ARRIVAL_QUIESCENCE, 0, 0);
+
+    configuration.testMaxThreads = resolveIntProperty(context,
+        TestRunnerConstants.PROP_TEST_MAX_THREADS, configuration.testParallelism, 1);
+
+    if (configuration.testMaxThreads < configuration.testParallelism) {
+      LOGGER.warning("Value of property '" + TestRunnerConstants.PROP_TEST_MAX_THREADS
+          + "' must not be less than the value of property '"
+          + TestRunnerConstants.PROP_TEST_PARALLELISM + "'. Using "
+          + configuration.testParallelism + ".");
+      configuration.testMaxThreads = configuration.testParallelism;
+    }
+
+    configuration.testResultBinary =
+        Boolean.parseBoolean(context.getProperty(TestRunnerConstants.PROP_TEST_RESULT_BINARY));
+
+    configuration.testResultCache =
+        Boolean.parseBoolean(context.getProperty(TestRunnerConstants.PROP_TEST_RESULT_CACHE));
+
+    configuration.testResultConsolidated = Boolean.parseBoolean(
+        context.getProperty(TestRunnerConstants.PROP_TEST_RESULT_CONSOLIDATED));
+
+    configuration.testResultProperties = resolveTestResultProperties(context);
+
+    configuration.testResultPropertiesFilter = resolveTestResultPropertiesFilter(context);
+
+    configuration.testResultXmlAppend = configuration.testResultConsolidated || Boolean
+        .parseBoolean(context.getProperty(TestRunnerConstants.PROP_TEST_RESULT_XML_APPEND));
+
+    configuration.testTimeout =
+        resolveIntProperty(context, TestRunnerConstants.PROP_TEST_TIMEOUT, 0, 0);
+
+    configuration.testWatch =
+        Boolean.parseBoolean(context.getProperty(TestRunnerConstants.PROP_TEST_WATCH));
+
+    if (configuration.testWatch && !configuration.developmentMode) {
+      LOGGER.warning("Property '" + TestRunnerConstants.PROP_TEST_WATCH + "' is supported only"
+          + " in development mode. Tests are not re-run on changes.");
+      configuration.testWatch = false;
+    }
+    if (configuration.testWatch && Boolean.parseBoolean(
+        context.getProperty(TestRunnerConstants.PROP_STOP_AFTER_TESTS))) {
+      LOGGER.warning("Property '" + TestRunnerConstants.PROP_TEST_WATCH + "' cannot be used"
+          + " together with property '" + TestRunnerConstants.PROP_STOP_AFTER_TESTS
+          + "'. Tests are not re-run on changes.");
+      configuration.testWatch = false;
+    }
+
+    configuration.testWatchDebounce =
+        resolveIntProperty(context, TestRunnerConstants.PROP_TEST_WATCH_DEBOUNCE, 500, 0);
+
+    configuration.virtualThreads =
+        Boolean.parseBoolean(context.getProperty(TestRunnerConstants.PROP_TEST_VIRTUAL_THREADS));
+
+    return configuration;
+  }
+
+  private static int resolveIntProperty(final BundleContext context,
+      final String propertyName, final int defaultValue, final int minValue) {
+
+    String value = context.getProperty(propertyName);
+    if (value == null || "".equals(value.trim())) {
+      return defaultValue;
+    }
+    try {
+      int result = Integer.parseInt(value.trim());
+      if (result >= minValue) {
+        return result;
+      }
+    } catch (NumberFormatException e) {
+      // Warning is logged below
+    }
+    LOGGER.warning("Value of property '" + propertyName + "' must be an integer not less than "
+        + minValue + ": '" + value + "'. Using default value " + defaultValue);
+    return defaultValue;
+  }
+
+  private static List<String> resolveStackTraceFoldedPackages(final BundleContext context) {
+    String value = context.getProperty(TestRunnerConstants.PROP_STACK_TRACE_FOLDING);
+    if ((value == null) || "".equals(value.trim()) || "false".equalsIgnoreCase(value.trim())) {
+      return Collections.emptyList();
+    }
+    if ("true".equalsIgnoreCase(value.trim())) {
+      return StackTraceRenderer.DEFAULT_FOLDED_PACKAGES;
+    }
+    List<String> result = new ArrayList<>();
+    for (String foldedPackage : value.split(",")) {
+      if (!"".equals(foldedPackage.trim())) {
+        result.add(foldedPackage.trim());
+      }
+    }
+    return result;
+  }
+
+  private static String resolveTestResultProperties(final BundleContext context) {
+    String value = context.getProperty(TestRunnerConstants.PROP_TEST_RESULT_PROPERTIES);
+    if ((value == null) || "".equals(value.trim())) {
+      return TestRunnerConstants.TEST_RESULT_PROPERTIES_SUITE;
+    }
+    String trimmedValue = value.trim();
+    if (TestRunnerConstants.TEST_RESULT_PROPERTIES_NONE.equals(trimmedValue)
+        || TestRunnerConstants.TEST_RESULT_PROPERTIES_RUN.equals(trimmedValue)
+        || TestRunnerConstants.TEST_RESULT_PROPERTIES_SUITE.equals(trimmedValue)) {
+      return trimmedValue;
+    }
+    LOGGER.warning("Value of property '" + TestRunnerConstants.PROP_TEST_RESULT_PROPERTIES
+        + "' must be one of '" + TestRunnerConstants.TEST_RESULT_PROPERTIES_SUITE + "', '"
+        + TestRunnerConstants.TEST_RESULT_PROPERTIES_RUN + "' or '"
+        + TestRunnerConstants.TEST_RESULT_PROPERTIES_NONE + "': '" + value
+        + "'. Using default value " + TestRunnerConstants.TEST_RESULT_PROPERTIES_SUITE);
+    return TestRunnerConstants.TEST_RESULT_PROPERTIES_SUITE;
+  }
+
+  private static Pattern resolveTestResultPropertiesFilter(final BundleContext context) {
+    String value = context.getProperty(TestRunnerConstants.PROP_TEST_RESULT_PROPERTIES_FILTER);
+    if ((value == null) || "".equals(value.trim())) {
+      return null;
+    }
+    try {
+      return Pattern.compile(value.trim());
+    } catch (PatternSyntaxException e) {
+      LOGGER.warning("Value of property '"
+          + TestRunnerConstants.PROP_TEST_RESULT_PROPERTIES_FILTER
+          + "' is not a valid regular expression: '" + value + "'. All properties are written: "
+          + e.getDescription());
+      return null;
+    }
+  }
+
   /**
    * The blocking manager instance that is registered as a framework listener, a blueprint listener
    * and as a service.
@@ -223,9 +394,6 @@ public class TestRunnerActivator implements BundleActivator {
     final boolean shutdownAfterTests =
         Boolean.parseBoolean(context.getProperty(TestRunnerConstants.PROP_STOP_AFTER_TESTS));
 
-    final boolean developmentMode =
-        Boolean.parseBoolean(context.getProperty(TestRunnerConstants.PROP_DEVELOPMENT_MODE));
-
     if (shutdownAfterTests) {
       frameworkStartBlocker = new FrameworkStartingShutdownBlockerImpl(context);
       frameworkStartBlocker.start();
@@ -247,7 +415,8 @@ public class TestRunnerActivator implements BundleActivator {
       shutdownThread.start();
     }
 
-    testExtender = new TestExtender(context, blockingManager, developmentMode);
+    testExtender = new TestExtender(context, blockingManager, testClassBlocker,
+        resolveConfiguration(context));
     testExtender.open();
   }
 
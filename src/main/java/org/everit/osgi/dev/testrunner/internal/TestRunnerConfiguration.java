@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.everit.osgi.dev.testrunner.TestRunnerConstants;
+
+/**
+ * The settings of the test runner that are resolved from the framework properties when the bundle
+ * is started.
+ */
+public class TestRunnerConfiguration {
+
+  /**
+   * The maximum number of asynchronous test classes that can be in flight at the same time.
+   */
+  public int asyncTestMaxInFlight = 16;
+
+  /**
+   * Whether the test runner is in development mode or not. In development mode only those tests
+   * are executed that are annotated with @TestDuringDevelopment.
+   */
+  public boolean developmentMode;
+
+  /**
+   * Whether the test runner should stop dispatching tests after the first failure.
+   */
+  public boolean failFast;
+
+  /**
+   * The number of times a failed test class is re-run.
+   */
+  public int retryCount = 0;
+
+  /**
+   * The number of shards that the tests are split into.
+   */
+  public int shardCount = 1;
+
+  /**
+   * The zero based index of the shard that is executed in this JVM.
+   */
+  public int shardIndex = 0;
+
+  /**
+   * Whether identical stack traces of the test cases of a test class should be replaced with a
+   * reference in the text results.
+   */
+  public boolean stackTraceDeduplication;
+
+  /**
+   * The prefixes of the class names whose consecutive stack trace frames are folded into one line
+   * in the results. If empty, the stack traces are not folded.
+   */
+  public List<String> stackTraceFoldedPackages = Collections.emptyList();
+
+  /**
+   * The time in milliseconds without new test services that the dispatcher waits for before it
+   * starts the ready tests or zero if tests are started immediately.
+   */
+  public long testArrivalQuiescence = 0;
+
+  /**
+   * The maximum number of threads that test classes and their test cases can use together.
+   */
+  public int testMaxThreads = 1;
+
+  /**
+   * The maximum number of test classes that can run at the same time.
+   */
+  public int testParallelism = 1;
+
+  /**
+   * Whether the results should be appended to one binary file instead of text and XML files.
+   */
+  public boolean testResultBinary;
+
+  /**
+   * Whether the results of successful test runs should be cached and reused.
+   */
+  public boolean testResultCache;
+
+  /**
+   * Whether the results should be written into one XML and one text file of the run.
+   */
+  public boolean testResultConsolidated;
+
+  /**
+   * Which testsuite elements of the XML results contain the system properties. One of the
+   * <code>TEST_RESULT_PROPERTIES_*</code> values of {@link TestRunnerConstants}.
+   */
+  public String testResultProperties = TestRunnerConstants.TEST_RESULT_PROPERTIES_SUITE;
+
+  /**
+   * The pattern that the keys of the system properties in the XML results must match or
+   * <code>null</code> if all system properties are written.
+   */
+  public Pattern testResultPropertiesFilter;
+
+  /**
+   * Whether the XML results should be appended to one testsuites file of the run.
+   */
+  public boolean testResultXmlAppend;
+
+  /**
+   * The time in milliseconds that a test class can run or zero if there is no timeout.
+   */
+  public long testTimeout = 0;
+
+  /**
+   * Whether the affected tests should be re-run when test services or bundles change.
+   */
+  public boolean testWatch;
+
+  /**
+   * The time in milliseconds without changes before the affected tests are re-run in watch mode.
+   */
+  public long testWatchDebounce = 500;
+
+  /**
+   * Whether the test classes should run on virtual threads if the JVM supports them.
+   */
+  public boolean virtualThreads;
+}
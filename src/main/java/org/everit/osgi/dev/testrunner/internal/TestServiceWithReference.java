@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.osgi.dev.testrunner.TestRunnerConstants;
+import org.everit.osgi.dev.testrunner.util.testclasscapability.TestClassCapabilityDTO;
+import org.everit.osgi.dev.testrunner.util.testclasscapability.TestClassCapabilitySyntaxException;
+import org.everit.osgi.dev.testrunner.util.testclasscapability.TestClassCapabilityUtil;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Simple holder class of an OSGi service reference and the service object. Two instances of this
+ * class are equal if the reference instance is equal.
+ */
+class TestServiceWithReference {
+
+  private static final Logger LOGGER = Logger.getLogger(TestServiceWithReference.class.getName());
+
+  /**
+   * The priority of the test that is resolved when it is first needed.
+   */
+  private Integer priority;
+
+  final ServiceReference<Object> reference;
+
+  final Object service;
+
+  TestServiceWithReference(final ServiceReference<Object> reference,
+      final Object service) {
+    this.reference = reference;
+    this.service = service;
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    return (obj instanceof TestServiceWithReference)
+        && ((TestServiceWithReference) obj).reference.equals(reference);
+  }
+
+  /**
+   * Returns the priority of the test. The priority is taken from the
+   * {@link TestRunnerConstants#SERVICE_PROPERTY_TEST_PRIORITY} service property or if it is not
+   * specified, from the {@link TestRunnerConstants#CAPABILITY_TESTCLASS_ATTR_PRIORITY} attribute of
+   * the test class capability of the bundle that registered the service.
+   *
+   * @return The priority of the test.
+   */
+  int getPriority() {
+    if (priority == null) {
+      priority = resolvePriority();
+    }
+    return priority;
+  }
+
+  @Override
+  public int hashCode() {
+    return reference.hashCode();
+  }
+
+  private int resolveCapabilityPriority() {
+    Bundle bundle = reference.getBundle();
+    if (bundle == null) {
+      return 0;
+    }
+    String className = service.getClass().getName();
+    try {
+      for (TestClassCapabilityDTO testClassCapability : TestClassCapabilityUtil
+          .resolveTestCaseCapabilities(bundle.getHeaders().get(Constants.PROVIDE_CAPABILITY))) {
+        if (className.equals(testClassCapability.clazz)) {
+          return testClassCapability.priority;
+        }
+      }
+    } catch (TestClassCapabilitySyntaxException e) {
+      LOGGER.log(Level.WARNING, "Cannot resolve priority of test " + reference.toString(), e);
+    }
+    return 0;
+  }
+
+  private int resolvePriority() {
+    Object priorityProp =
+        reference.getProperty(TestRunnerConstants.SERVICE_PROPERTY_TEST_PRIORITY);
+    if (priorityProp == null) {
+      return resolveCapabilityPriority();
+    }
+    if (priorityProp instanceof Number) {
+      return ((Number) priorityProp).intValue();
+    }
+    try {
+      return Integer.parseInt(String.valueOf(priorityProp).trim());
+    } catch (NumberFormatException e) {
+      LOGGER.warning("Invalid '" + TestRunnerConstants.SERVICE_PROPERTY_TEST_PRIORITY
+          + "' service property value: '" + priorityProp + "'. Using priority 0 for test "
+          + reference.toString());
+      return 0;
+    }
+  }
+
+}
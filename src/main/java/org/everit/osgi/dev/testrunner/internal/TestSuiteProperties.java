@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import org.everit.osgi.dev.testrunner.TestRunnerConstants;
+
+/**
+ * The property elements of the testsuites in the XML results. The system properties are captured
+ * and serialized once when the test runner starts, so writing a testsuite does not iterate and
+ * escape hundreds of properties again.
+ */
+class TestSuiteProperties {
+
+  private boolean emitted = false;
+
+  private final boolean oncePerRun;
+
+  private final String propertiesXml;
+
+  /**
+   * Constructor that captures the current system properties.
+   *
+   * @param emission
+   *          Which testsuites contain the properties. One of the
+   *          <code>TEST_RESULT_PROPERTIES_*</code> values of {@link TestRunnerConstants}.
+   * @param keyFilter
+   *          The pattern that the keys of the properties must match or <code>null</code> if all
+   *          properties are written.
+   */
+  TestSuiteProperties(final String emission, final Pattern keyFilter) {
+    this.oncePerRun = TestRunnerConstants.TEST_RESULT_PROPERTIES_RUN.equals(emission);
+    if (TestRunnerConstants.TEST_RESULT_PROPERTIES_NONE.equals(emission)) {
+      this.propertiesXml = "";
+    } else {
+      Properties systemProperties = System.getProperties();
+      Map<Object, Object> snapshot;
+      synchronized (systemProperties) {
+        snapshot = new HashMap<>(systemProperties);
+      }
+      this.propertiesXml = ResultUtil.serializeXmlProperties(snapshot, keyFilter);
+    }
+  }
+
+  /**
+   * Provides the property elements of the next testsuite that is written.
+   *
+   * @return The serialized property elements or an empty string if the testsuite should not
+   *         contain properties.
+   */
+  synchronized String nextPropertiesXml() {
+    if (oncePerRun) {
+      if (emitted) {
+        return "";
+      }
+      emitted = true;
+    }
+    return propertiesXml;
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Re-runs test services in watch mode when they are modified or re-registered or when a bundle in
+ * their wiring closure is updated. The triggers are debounced: a test is re-run only when no new
+ * trigger arrived for the debounce time, so a redeployment that updates several bundles and
+ * re-registers the services runs every affected test only once. If the old revision of an updated
+ * bundle is still in use, the affected tests are re-run only after the packages are refreshed, so
+ * they do not run against the old classes.
+ */
+class TestWatcher implements BundleListener, FrameworkListener {
+
+  private static final Logger LOGGER = Logger.getLogger(TestWatcher.class.getName());
+
+  /**
+   * Resolves the key of a test. The id of the bundle that registered the test service is part of
+   * the key, as the same test class with the same test id might be registered by several bundles.
+   * The id of a bundle does not change when it is updated.
+   */
+  private static String resolveTestKey(final TestServiceWithReference test) {
+    Bundle bundle = test.reference.getBundle();
+    long bundleId = (bundle != null) ? bundle.getBundleId() : -1;
+    return bundleId + "#" + test.service.getClass().getName() + "#"
+        + ResultUtil.getTestIdFromReference(test.reference);
+  }
+
+  private final BundleContext bundleContext;
+
+  private final long debounceTime;
+
+  private ScheduledFuture<?> flushFuture;
+
+  private final Object mutex = new Object();
+
+  /**
+   * The tests that should be re-run when the debounce time elapses by their keys. Only the last
+   * registered instance of a test is kept.
+   */
+  private final Map<String, TestServiceWithReference> pendingTestsByKey = new LinkedHashMap<>();
+
+  /**
+   * The updated bundles whose old revision was still in use when they were updated. The tests that
+   * depend on them are re-run when the packages are refreshed.
+   */
+  private final Set<Bundle> refreshPendingBundles = new HashSet<>();
+
+  private final Consumer<TestServiceWithReference> rerunAction;
+
+  private ScheduledThreadPoolExecutor scheduler;
+
+  /**
+   * The keys of the tests that were registered at least once. If a test with a known key is
+   * registered again, it is re-run with debouncing.
+   */
+  private final Set<String> seenTestKeys = new HashSet<>();
+
+  private final Supplier<List<TestServiceWithReference>> trackedTestsSupplier;
+
+  /**
+   * Constructor.
+   *
+   * @param bundleContext
+   *          The context of the test runner bundle.
+   * @param debounceTime
+   *          The time in milliseconds without new triggers before the affected tests are re-run.
+   * @param trackedTestsSupplier
+   *          Provides the test services that are currently registered.
+   * @param rerunAction
+   *          Called for every test that should be re-run. The action is called outside of the
+   *          mutex of the watcher, so it must ignore the tests that are not registered anymore and
+   *          defer the re-run of the tests that are still running.
+   */
+  TestWatcher(final BundleContext bundleContext, final long debounceTime,
+      final Supplier<List<TestServiceWithReference>> trackedTestsSupplier,
+      final Consumer<TestServiceWithReference> rerunAction) {
+    this.bundleContext = bundleContext;
+    this.debounceTime = debounceTime;
+    this.trackedTestsSupplier = trackedTestsSupplier;
+    this.rerunAction = rerunAction;
+  }
+
+  @Override
+  public void bundleChanged(final BundleEvent event) {
+    if (event.getType() != BundleEvent.UPDATED) {
+      return;
+    }
+    Bundle updatedBundle = event.getBundle();
+    FrameworkWiring frameworkWiring = bundleContext.getBundle(0).adapt(FrameworkWiring.class);
+    if ((frameworkWiring != null)
+        && frameworkWiring.getRemovalPendingBundles().contains(updatedBundle)) {
+      LOGGER.fine("Bundle " + updatedBundle.getSymbolicName() + " is updated, waiting for the"
+          + " refresh of the packages before re-running the tests");
+      synchronized (mutex) {
+        refreshPendingBundles.add(updatedBundle);
+      }
+      return;
+    }
+    scheduleRerunOfDependentTests(updatedBundle);
+  }
+
+  /**
+   * Drops the pending re-run of a test service that is unregistered.
+   *
+   * @param reference
+   *          The reference of the unregistered test service.
+   */
+  void cancelRerun(final ServiceReference<Object> reference) {
+    synchronized (mutex) {
+      pendingTestsByKey.values().removeIf((test) -> test.reference.equals(reference));
+    }
+  }
+
+  /**
+   * Stops watching the bundles and drops the pending re-runs.
+   */
+  void close() {
+    bundleContext.removeBundleListener(this);
+    bundleContext.removeFrameworkListener(this);
+    synchronized (mutex) {
+      pendingTestsByKey.clear();
+      refreshPendingBundles.clear();
+    }
+    scheduler.shutdownNow();
+  }
+
+  @Override
+  public void frameworkEvent(final FrameworkEvent event) {
+    if (event.getType() != FrameworkEvent.PACKAGES_REFRESHED) {
+      return;
+    }
+    List<Bundle> updatedBundles;
+    synchronized (mutex) {
+      updatedBundles = new ArrayList<>(refreshPendingBundles);
+      refreshPendingBundles.clear();
+    }
+    for (Bundle updatedBundle : updatedBundles) {
+      scheduleRerunOfDependentTests(updatedBundle);
+    }
+  }
+
+  private void flushPendingTests() {
+    List<TestServiceWithReference> tests;
+    synchronized (mutex) {
+      tests = new ArrayList<>(pendingTestsByKey.values());
+      pendingTestsByKey.clear();
+      flushFuture = null;
+    }
+    LOGGER.info("Re-running " + tests.size() + " test(s) after changes");
+    for (TestServiceWithReference test : tests) {
+      try {
+        rerunAction.accept(test);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.SEVERE, "Error during re-running test " + test.reference.toString(), e);
+      }
+    }
+  }
+
+  /**
+   * Starts watching the bundles.
+   */
+  void open() {
+    scheduler = new ScheduledThreadPoolExecutor(1, (runnable) -> {
+      Thread thread = new Thread(runnable);
+      thread.setName("eosgi-testrunner-watch");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.setRemoveOnCancelPolicy(true);
+    bundleContext.addFrameworkListener(this);
+    bundleContext.addBundleListener(this);
+  }
+
+  /**
+   * Registers a test service that is added to the test runner.
+   *
+   * @param test
+   *          The test service.
+   * @return <code>true</code> if this is the first registration of the test, so it should run
+   *         immediately, <code>false</code> if the test was registered before and it is scheduled
+   *         for a debounced re-run.
+   */
+  boolean registerTest(final TestServiceWithReference test) {
+    boolean firstRegistration;
+    synchronized (mutex) {
+      firstRegistration = seenTestKeys.add(resolveTestKey(test));
+    }
+    if (!firstRegistration) {
+      scheduleRerun(test);
+    }
+    return firstRegistration;
+  }
+
+  /**
+   * Schedules the re-run of a test service. The debounce time starts again.
+   *
+   * @param test
+   *          The test service.
+   */
+  void scheduleRerun(final TestServiceWithReference test) {
+    synchronized (mutex) {
+      pendingTestsByKey.remove(resolveTestKey(test));
+      pendingTestsByKey.put(resolveTestKey(test), test);
+      if (flushFuture != null) {
+        flushFuture.cancel(false);
+      }
+      flushFuture =
+          scheduler.schedule(this::flushPendingTests, debounceTime, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Schedules the re-run of the tests that have an updated bundle in their wiring closure.
+   */
+  private void scheduleRerunOfDependentTests(final Bundle updatedBundle) {
+    for (TestServiceWithReference test : trackedTestsSupplier.get()) {
+      Bundle testBundle = test.reference.getBundle();
+      if ((testBundle != null)
+          && TestResultCache.collectWiringClosure(testBundle).contains(updatedBundle)) {
+        LOGGER.fine("Bundle " + updatedBundle.getSymbolicName() + " is updated, re-running test "
+            + test.reference.toString());
+        scheduleRerun(test);
+      }
+    }
+  }
+}
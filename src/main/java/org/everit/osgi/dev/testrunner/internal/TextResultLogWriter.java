@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+
+/**
+ * Appends the results of test classes in text format to one log file. The file is opened when the
+ * first result arrives and it is kept open until the writer is closed.
+ */
+class TextResultLogWriter {
+
+  private static final Logger LOGGER = Logger.getLogger(TextResultLogWriter.class.getName());
+
+  private final int bufferSize;
+
+  private boolean closed = false;
+
+  private final File file;
+
+  private Writer writer;
+
+  /**
+   * Constructor.
+   *
+   * @param file
+   *          The file that the results are written to. If it exists, it is overwritten.
+   * @param bufferSize
+   *          The size of the write buffer in characters.
+   */
+  TextResultLogWriter(final File file, final int bufferSize) {
+    this.file = file;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Closes the file. Results that are appended after this call are ignored.
+   */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error during closing file " + file, e);
+    }
+  }
+
+  /**
+   * Flushes the buffer, so the file contains every test class that was appended even if the JVM
+   * is killed.
+   */
+  synchronized void flush() {
+    if (closed || (writer == null)) {
+      return;
+    }
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error during flushing file " + file, e);
+    }
+  }
+
+  /**
+   * Appends the result of a test class to the file. The result might stay in the buffer until
+   * {@link #flush()} is called.
+   *
+   * @param testClassResult
+   *          The result of the test class.
+   * @param testId
+   *          The id of the test.
+   * @param testCaseFragment
+   *          The test cases that were reported one by one or <code>null</code> if all test cases
+   *          are in the test result.
+   */
+  synchronized void writeTestResult(final TestClassResult testClassResult, final String testId,
+      final String testCaseFragment) {
+    if (closed) {
+      LOGGER.warning("Result of test class " + testClassResult.className
+          + " is not written into the closed file " + file);
+      return;
+    }
+    try {
+      if (writer == null) {
+        File parentFolder = file.getParentFile();
+        if (!parentFolder.exists() && !parentFolder.mkdirs()) {
+          throw new IOException("Cannot create test result folder: " + parentFolder);
+        }
+        writer = ResultUtil.openBufferedFileWriter(file, bufferSize);
+      } else {
+        writer.write("\n\n");
+      }
+      ResultUtil.dumpTextResult(testClassResult, testId, writer);
+      if (testCaseFragment != null) {
+        writer.write(testCaseFragment);
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error during writing the result of test class "
+          + testClassResult.className + " to file " + file, e);
+    }
+  }
+}
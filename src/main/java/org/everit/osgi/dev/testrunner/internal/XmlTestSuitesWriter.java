@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+
+/**
+ * Appends the results of test classes as testsuite elements to one testsuites file. The file is
+ * opened when the first result arrives and it is kept open until the writer is closed, so the
+ * cost of appending a result does not depend on the results that were written before.
+ */
+class XmlTestSuitesWriter {
+
+  private static final Logger LOGGER = Logger.getLogger(XmlTestSuitesWriter.class.getName());
+
+  private final int bufferSize;
+
+  private boolean closed = false;
+
+  private final File file;
+
+  private Writer writer;
+
+  /**
+   * Constructor.
+   *
+   * @param file
+   *          The file that the results are written to. If it exists, it is overwritten.
+   * @param bufferSize
+   *          The size of the write buffer in characters.
+   */
+  XmlTestSuitesWriter(final File file, final int bufferSize) {
+    this.file = file;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Closes the testsuites element and the file. Results that are appended after this call are
+   * ignored.
+   */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.write("</testsuites>\n");
+      writer.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error during closing file " + file, e);
+    }
+  }
+
+  /**
+   * Flushes the buffers, so the file contains every test class that was appended even if the JVM
+   * is killed.
+   */
+  synchronized void flush() {
+    if (closed || (writer == null)) {
+      return;
+    }
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error during flushing file " + file, e);
+    }
+  }
+
+  private void open() throws IOException {
+    File parentFolder = file.getParentFile();
+    if (!parentFolder.exists() && !parentFolder.mkdirs()) {
+      throw new IOException("Cannot create test result folder: " + parentFolder);
+    }
+    writer = ResultUtil.openBufferedFileWriter(file, bufferSize);
+    ResultUtil.writeXmlDeclaration(writer);
+    writer.write("<testsuites>\n");
+  }
+
+  /**
+   * Appends the testsuite element of a test class result to the file. The element might stay in
+   * the buffers until {@link #flush()} is called.
+   *
+   * @param testClassResult
+   *          The result of the test class.
+   * @param propertiesXml
+   *          The serialized property elements of the testsuite.
+   * @param testCaseFragment
+   *          The testcase elements that were reported one by one or <code>null</code> if all test
+   *          cases are in the test result.
+   */
+  synchronized void writeTestSuite(final TestClassResult testClassResult,
+      final String propertiesXml, final String testCaseFragment) {
+    if (closed) {
+      LOGGER.warning("Result of test class " + testClassResult.className
+          + " is not written into the closed file " + file);
+      return;
+    }
+    try {
+      if (writer == null) {
+        open();
+      }
+      ResultUtil.writeXmlTestSuiteElement(testClassResult, propertiesXml, testCaseFragment,
+          writer);
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error during writing the result of test class "
+          + testClassResult.className + " to file " + file, e);
+    }
+  }
+}
@@ -157,6 +157,12 @@ public final class BlockingManagerImpl {
   private final Map<ShutdownBlocker, ShutdownBlockListener> listenersByBlockers =
       new ConcurrentHashMap<>();
 
+  /**
+   * A flag that indicates whether the waiting for the blockers was given up by calling
+   * {@link #release(String)}.
+   */
+  private final AtomicBoolean released = new AtomicBoolean(false);
+
   /**
    * A flag that indicates whether this manager is stopped or not.
    */
@@ -238,6 +244,25 @@ public final class BlockingManagerImpl {
     }
   }
 
+  /**
+   * Releases the threads that wait for no blocking cause even if there are still active blockers.
+   * This is used when it is not worth waiting for the remaining tests, e.g. in fail-fast mode.
+   *
+   * @param reason
+   *          The reason of the release that is logged.
+   */
+  public void release(final String reason) {
+    if (released.compareAndSet(false, true)) {
+      LOGGER.warning("Not waiting for blocking causes anymore: " + reason);
+      activeBlockersLock.lock();
+      try {
+        activeBlockersEmptyCondition.signalAll();
+      } finally {
+        activeBlockersLock.unlock();
+      }
+    }
+  }
+
   /**
    * Starting the blocking manager, it will track for blocker services and will have a blocker
    * thread.
@@ -298,14 +323,15 @@ public final class BlockingManagerImpl {
   public boolean waitForNoBlockCause(final long timeout) {
     activeBlockersLock.lock();
     try {
-      if (!stopped.get() && (activeBlockers.size() > 0)) {
+      if (!stopped.get() && !released.get() && (activeBlockers.size() > 0)) {
         if (timeout == 0) {
-          while (activeBlockers.size() > 0) {
+          while (!released.get() && (activeBlockers.size() > 0)) {
             activeBlockersEmptyCondition.await();
           }
           return true;
         } else {
-          return activeBlockersEmptyCondition.await(timeout, TimeUnit.MILLISECONDS);
+          return activeBlockersEmptyCondition.await(timeout, TimeUnit.MILLISECONDS)
+              || released.get();
         }
       } else {
         return true;
@@ -84,9 +84,7 @@ public class TestClassShutdownBlockerImpl extends AbstractShutdownBlocker {
     testCaseCapabilityTracker.close();
   }
 
-  @Override
-  public synchronized void handleTestClassResult(final TestClassResult testClassResult) {
-    String className = testClassResult.className;
+  private void decrementRemainingTestClassCount(final String className) {
     Integer remainingTestClassCount = remainingTestClassCountByClassName.get(className);
     remainingTestClassCount = (remainingTestClassCount != null) ? remainingTestClassCount - 1 : -1;
 
@@ -99,6 +97,23 @@ public class TestClassShutdownBlockerImpl extends AbstractShutdownBlocker {
     }
   }
 
+  /**
+   * Called when a test service is not executed in this JVM, because it belongs to another shard.
+   * The test class is not expected anymore, so this JVM can shut down as soon as the tests of its
+   * own shard are executed.
+   *
+   * @param className
+   *          The name of the test class.
+   */
+  public synchronized void handleTestClassOfOtherShard(final String className) {
+    decrementRemainingTestClassCount(className);
+  }
+
+  @Override
+  public synchronized void handleTestClassResult(final TestClassResult testClassResult) {
+    decrementRemainingTestClassCount(testClassResult.className);
+  }
+
   @Override
   public synchronized void logBlockCauses(final StringBuilder sb) {
     for (Entry<String, Integer> entry : remainingTestClassCountByClassName.entrySet()) {
@@ -15,6 +15,8 @@
  */
 package org.everit.osgi.dev.testrunner.internal.util;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -44,4 +46,46 @@ public final class ThreadUtil {
     return result;
   }
 
+  private void dumpThread(final Thread thread, final StackTraceElement[] stackTrace,
+      final PrintWriter pw) {
+    pw.println("Thread [name=" + thread.getName() + ", id=" + thread.getId() + ", state="
+        + thread.getState().name() + ", daemon=" + thread.isDaemon() + "]");
+    for (StackTraceElement stackTraceElement : stackTrace) {
+      pw.println("\t" + stackTraceElement);
+    }
+  }
+
+  /**
+   * Creates a thread dump that contains the stack trace of all threads of the JVM. The stack trace
+   * of the specified thread is written first.
+   *
+   * @param primaryThread
+   *          The thread that the dump is created for or <code>null</code> if there is no such
+   *          thread.
+   * @return The thread dump in text format.
+   */
+  public String dumpThreads(final Thread primaryThread) {
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    boolean first = true;
+    if (primaryThread != null) {
+      dumpThread(primaryThread, primaryThread.getStackTrace(), pw);
+      first = false;
+    }
+
+    Map<Thread, StackTraceElement[]> allStackTraces = Thread.getAllStackTraces();
+    for (Entry<Thread, StackTraceElement[]> threadAndStackTrace : allStackTraces.entrySet()) {
+      Thread thread = threadAndStackTrace.getKey();
+      if (!thread.equals(primaryThread)) {
+        if (!first) {
+          pw.println();
+        }
+        first = false;
+        dumpThread(thread, threadAndStackTrace.getValue(), pw);
+      }
+    }
+    pw.flush();
+    return sw.toString();
+  }
+
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.result;
+
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+
+import aQute.bnd.annotation.ConsumerType;
+
+/**
+ * OSGi services that implement this interface receive the result of every test class that the
+ * test runner executed, so they can write the results in their own format next to the built-in
+ * text and XML results. Every sink is called on its own thread in the order of the results, so a
+ * slow sink does not hold back the tests or the other sinks. Every sink has its own bounded queue.
+ * If a sink cannot keep up with the tests and its queue is full, the results that arrive until
+ * there is space again are not delivered to that sink and a warning is logged for each of them.
+ * The other sinks still receive those results. Every sink receives its own copy of a result.
+ */
+@ConsumerType
+public interface ResultSink {
+
+  /**
+   * Called when a test class is executed. The test cases that the engine reported one by one via
+   * the {@link org.everit.osgi.dev.testrunner.engine.TestCaseListener} are not available in
+   * {@link TestClassResult#testCaseResults}, only in the counters of the result.
+   *
+   * @param testClassResult
+   *          The execution result of the test class.
+   * @param testId
+   *          The id of the test from the
+   *          {@link org.everit.osgi.dev.testrunner.TestRunnerConstants#SERVICE_PROPERTY_TEST_ID}
+   *          service property or <code>null</code> if the test does not have an id.
+   */
+  void handleTestClassResult(TestClassResult testClassResult, String testId);
+}
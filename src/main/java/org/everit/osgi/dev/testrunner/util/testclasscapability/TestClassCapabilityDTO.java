@@ -26,4 +26,9 @@ public class TestClassCapabilityDTO {
    * The count how many times this class should be executed.
    */
   public int count = 1;
+
+  /**
+   * The priority of the class. Test classes with higher priority are started earlier.
+   */
+  public int priority = 0;
 }
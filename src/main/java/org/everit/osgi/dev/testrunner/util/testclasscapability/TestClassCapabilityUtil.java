@@ -29,6 +29,14 @@ import org.everit.osgi.dev.testrunner.TestRunnerConstants;
  */
 public final class TestClassCapabilityUtil {
 
+  private static String getAttribute(final Clause clause, final String attributeName) {
+    String value = clause.getAttribute(attributeName);
+    if (value == null) {
+      value = clause.getAttribute(attributeName + ":Long");
+    }
+    return value;
+  }
+
   private static TestClassCapabilityDTO processTestCaseCapabilityClause(final Clause clause) {
     String clazz = clause.getAttribute(TestRunnerConstants.CAPABILITY_TESTCLASS_NAMESPACE);
     if (clazz == null) {
@@ -36,12 +44,7 @@ public final class TestClassCapabilityUtil {
           + TestRunnerConstants.CAPABILITY_TESTCLASS_NAMESPACE + " capability: " + clause);
     }
     String countAttr =
-        clause.getAttribute(TestRunnerConstants.CAPABILITY_TESTCLASS_ATTR_EXECUTION_COUNT);
-
-    if (countAttr == null) {
-      countAttr = clause
-          .getAttribute(TestRunnerConstants.CAPABILITY_TESTCLASS_ATTR_EXECUTION_COUNT + ":Long");
-    }
+        getAttribute(clause, TestRunnerConstants.CAPABILITY_TESTCLASS_ATTR_EXECUTION_COUNT);
 
     int count = 1;
     if (countAttr != null) {
@@ -55,9 +58,23 @@ public final class TestClassCapabilityUtil {
       }
     }
 
+    String priorityAttr =
+        getAttribute(clause, TestRunnerConstants.CAPABILITY_TESTCLASS_ATTR_PRIORITY);
+
+    int priority = 0;
+    if (priorityAttr != null) {
+      try {
+        priority = Integer.parseInt(priorityAttr);
+      } catch (NumberFormatException e) {
+        throw new TestClassCapabilitySyntaxException(
+            "Priority attribute must be a number in testCase clause: " + clause.toString());
+      }
+    }
+
     TestClassCapabilityDTO testCaseCapability = new TestClassCapabilityDTO();
     testCaseCapability.clazz = clazz;
     testCaseCapability.count = count;
+    testCaseCapability.priority = priority;
     return testCaseCapability;
   }
 
@@ -71,7 +88,8 @@ public final class TestClassCapabilityUtil {
    * @throws TestClassCapabilitySyntaxException
    *           if {@link TestRunnerConstants#CAPABILITY_TESTCLASS_NAMESPACE} attribute is missing or
    *           {@link TestRunnerConstants#CAPABILITY_TESTCLASS_ATTR_EXECUTION_COUNT} attribute is
-   *           not a number.
+   *           not a number or {@link TestRunnerConstants#CAPABILITY_TESTCLASS_ATTR_PRIORITY}
+   *           attribute is not a number.
    */
   public static Collection<TestClassCapabilityDTO> resolveTestCaseCapabilities(
       final String provideCapabilityHeader) {
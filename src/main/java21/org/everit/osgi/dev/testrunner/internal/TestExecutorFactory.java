@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the worker pool of the test classes. This is the implementation for Java 21 and above
+ * that can run every test class on its own virtual thread.
+ */
+final class TestExecutorFactory {
+
+  /**
+   * Creates an {@link ExecutorService} that runs the test classes. The executor does not limit the
+   * number of concurrent tests, that is done by the dispatcher. A new thread is started if all
+   * threads are busy, so a test that hangs after its timeout does not take capacity from the
+   * others.
+   *
+   * @param virtualThreads
+   *          Whether the tests should run on virtual threads. In that case a new virtual thread is
+   *          started for every test class.
+   * @return The executor.
+   */
+  static ExecutorService createTestExecutor(final boolean virtualThreads) {
+
+    if (virtualThreads) {
+      return Executors.newThreadPerTaskExecutor(
+          Thread.ofVirtual().name("eosgi-testrunner-virtual-", 1).factory());
+    }
+    AtomicInteger threadIndex = new AtomicInteger();
+    return Executors.newCachedThreadPool((runnable) -> {
+      Thread thread = new Thread(runnable);
+      thread.setName("eosgi-testrunner-" + threadIndex.incrementAndGet());
+      return thread;
+    });
+  }
+
+  private TestExecutorFactory() {
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.everit.osgi.dev.testrunner.engine.TestCaseResult;
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compares the XML results with golden files. The golden files were checked against the output of
+ * the former DOM based serialization: the escaping and the order of the attributes are the same,
+ * only the whitespace between the elements differs.
+ */
+public class ResultUtilTest {
+
+  private static final String FAILURE_MESSAGE =
+      "a & b < c > d \"q\" 'a'\nline2\r\n\ttab \u00e9\u4e2d";
+
+  private static <T extends Throwable> T createFailure(final T failure) {
+    failure.setStackTrace(new StackTraceElement[] {
+        new StackTraceElement("org.example.ExampleTest", "testMethod", "ExampleTest.java", 42),
+        new StackTraceElement("sun.reflect.NativeMethodAccessorImpl", "invoke0", null, -2) });
+    return failure;
+  }
+
+  private static TestCaseResult createTestCaseResult(final String testMethodName,
+      final long startTime, final long finishTime, final Throwable failure) {
+    TestCaseResult testCaseResult = new TestCaseResult();
+    testCaseResult.testMethodName = testMethodName;
+    testCaseResult.startTime = startTime;
+    testCaseResult.finishTime = finishTime;
+    testCaseResult.failure = failure;
+    return testCaseResult;
+  }
+
+  private static TestClassResult createTestClassResult(final String className) {
+    TestClassResult testClassResult = new TestClassResult();
+    testClassResult.className = className;
+    testClassResult.startTime = 1000;
+    testClassResult.finishTime = 3345;
+    testClassResult.runCount = 4;
+    testClassResult.failureCount = 1;
+    testClassResult.errorCount = 1;
+    testClassResult.ignoreCount = 1;
+    testClassResult.testCaseResults.add(createTestCaseResult("testSuccess", 1000, 1010, null));
+    testClassResult.testCaseResults.add(createTestCaseResult("testFailure", 1010, 1250,
+        createFailure(new AssertionError(FAILURE_MESSAGE))));
+    testClassResult.testCaseResults.add(createTestCaseResult("testError", 1250, 2250,
+        createFailure(new IllegalStateException())));
+    testClassResult.testCaseResults.add(createTestCaseResult("testFlaky", 2250, 3345, null));
+
+    TestClassResult previousAttempt = new TestClassResult();
+    previousAttempt.className = className;
+    previousAttempt.testCaseResults.add(createTestCaseResult("testFlaky", 0, 1,
+        createFailure(new AssertionError("first <attempt>"))));
+    previousAttempt.testCaseResults.add(createTestCaseResult("testFailure", 0, 1,
+        createFailure(new RuntimeException("boom"))));
+    testClassResult.previousAttempts.add(previousAttempt);
+    return testClassResult;
+  }
+
+  private static String readFile(final File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+
+  private static String readGoldenFile(final String name) throws IOException {
+    try (InputStream in = ResultUtilTest.class.getResourceAsStream(name)) {
+      Assert.assertNotNull("Missing golden file " + name, in);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int r = in.read(buffer);
+      while (r >= 0) {
+        out.write(buffer, 0, r);
+        r = in.read(buffer);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static String serializeProperties() {
+    Map<String, String> properties = new LinkedHashMap<>();
+    properties.put("a.key", "value <&> \"x\"\nnext\ttab");
+    properties.put("b.key", "plain");
+    return ResultUtil.serializeXmlProperties(properties, null);
+  }
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @After
+  public void after() {
+    resetStackTraceRenderer();
+  }
+
+  @Before
+  public void before() {
+    resetStackTraceRenderer();
+  }
+
+  private void resetStackTraceRenderer() {
+    ResultUtil.setStackTraceRenderer(
+        new StackTraceRenderer(Collections.<String> emptyList(), false));
+  }
+
+  /**
+   * Writes the test cases into a fragment via a {@link TestCaseSpool} that can be merged into a
+   * result without test cases.
+   */
+  private TestCaseSpool spoolTestCases(final TestClassResult testClassResult,
+      final boolean xmlFragmentInMemory) throws IOException {
+    TestCaseSpool testCaseSpool = new TestCaseSpool(temporaryFolder.newFolder(), "default",
+        false, false, xmlFragmentInMemory, testClassResult.previousAttempts);
+    for (TestCaseResult testCaseResult : testClassResult.testCaseResults) {
+      testCaseSpool.testCaseFinished(testClassResult.className, testCaseResult);
+    }
+    testCaseSpool.close();
+    return testCaseSpool;
+  }
+
+  @Test
+  public void testSpooledTestCasesMatchGoldenFile() throws IOException {
+    File fragmentFile = spoolTestCases(createTestClassResult("org.example.ExampleTest"), false)
+        .getXmlFragmentFile();
+    TestClassResult testClassResult = createTestClassResult("org.example.SpooledTest");
+    testClassResult.testCaseResults.clear();
+
+    File file = new File(temporaryFolder.getRoot(), "spooled.xml");
+    ResultUtil.writeXmlResultToFile(testClassResult, file, serializeProperties(), fragmentFile);
+
+    Assert.assertEquals(readGoldenFile("golden-testsuite-spooled.xml"), readFile(file));
+  }
+
+  @Test
+  public void testTestSuiteMatchesGoldenFile() throws IOException {
+    File file = new File(temporaryFolder.getRoot(), "single.xml");
+    ResultUtil.writeXmlResultToFile(createTestClassResult("org.example.ExampleTest"), file,
+        serializeProperties(), null);
+
+    Assert.assertEquals(readGoldenFile("golden-testsuite.xml"), readFile(file));
+  }
+
+  @Test
+  public void testTestSuitesMatchGoldenFile() throws IOException {
+    TestClassResult testClassResult = createTestClassResult("org.example.ExampleTest");
+    TestCaseSpool testCaseSpool = spoolTestCases(testClassResult, true);
+    Assert.assertNull(testCaseSpool.getXmlFragmentFile());
+    String fragment = testCaseSpool.getXmlFragment();
+    TestClassResult spooledTestClassResult = createTestClassResult("org.example.SpooledTest");
+    spooledTestClassResult.testCaseResults.clear();
+
+    File file = new File(temporaryFolder.getRoot(), "suites.xml");
+    XmlTestSuitesWriter xmlTestSuitesWriter = new XmlTestSuitesWriter(file, 8192);
+    String propertiesXml = serializeProperties();
+    xmlTestSuitesWriter.writeTestSuite(testClassResult, propertiesXml, null);
+    xmlTestSuitesWriter.writeTestSuite(spooledTestClassResult, propertiesXml, fragment);
+    xmlTestSuitesWriter.close();
+
+    Assert.assertEquals(readGoldenFile("golden-testsuites.xml"), readFile(file));
+  }
+
+  @Test
+  public void testTextSummaryIsOneLine() {
+    Assert.assertEquals("Test set: org.example.ExampleTest (default), Tests run: 4, Failures: 1,"
+        + " Errors: 1, Skipped: 1, Time elapsed: 2.345 sec <<< FAILURE!",
+        ResultUtil.createTextSummary(createTestClassResult("org.example.ExampleTest"),
+            "default"));
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Map;
+
+import org.everit.osgi.dev.testrunner.engine.TestCaseResult;
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StackTraceRendererTest {
+
+  private static int countOccurrences(final String text, final String part) {
+    int count = 0;
+    int index = text.indexOf(part);
+    while (index >= 0) {
+      count++;
+      index = text.indexOf(part, index + part.length());
+    }
+    return count;
+  }
+
+  private static AssertionError createFailure(final String message) {
+    AssertionError failure = new AssertionError(message);
+    failure.setStackTrace(new StackTraceElement[] {
+        new StackTraceElement("org.example.ExampleTest", "testSomething", "ExampleTest.java", 42),
+        new StackTraceElement("sun.reflect.NativeMethodAccessorImpl", "invoke0", null, -2),
+        new StackTraceElement("java.lang.reflect.Method", "invoke", "Method.java", 498),
+        new StackTraceElement("org.everit.osgi.dev.testrunner.internal.TestExtender", "runTest",
+            "TestExtender.java", 100),
+        new StackTraceElement("org.example.Helper", "help", "Helper.java", 7),
+        new StackTraceElement("java.lang.reflect.Method", "invoke", "Method.java", 498),
+        new StackTraceElement("java.lang.Thread", "run", "Thread.java", 748) });
+    return failure;
+  }
+
+  /**
+   * Creates a failure whose stack trace is printed with Windows line separators.
+   */
+  private static AssertionError createFailureWithCrLf(final String message) {
+    AssertionError failure = new AssertionError(message) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public void printStackTrace(final PrintWriter s) {
+        s.print(StackTraceRendererTest.printStackTrace(createFailure(message))
+            .replace(System.lineSeparator(), "\r\n"));
+      }
+    };
+    failure.setStackTrace(createFailure(message).getStackTrace());
+    return failure;
+  }
+
+  private static TestCaseResult createTestCaseResult(final String testMethodName,
+      final Throwable failure) {
+    TestCaseResult testCaseResult = new TestCaseResult();
+    testCaseResult.testMethodName = testMethodName;
+    testCaseResult.failure = failure;
+    return testCaseResult;
+  }
+
+  private static String printStackTrace(final Throwable throwable) {
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    throwable.printStackTrace(pw);
+    pw.flush();
+    return sw.toString();
+  }
+
+  @After
+  public void after() {
+    ResultUtil.setStackTraceRenderer(
+        new StackTraceRenderer(Collections.<String> emptyList(), false));
+  }
+
+  @Test
+  public void testConsecutiveFrameworkFramesAreFolded() {
+    StackTraceRenderer renderer =
+        new StackTraceRenderer(StackTraceRenderer.DEFAULT_FOLDED_PACKAGES, false);
+
+    String stackTrace = renderer.render(createFailure("failed"));
+
+    Assert.assertEquals("java.lang.AssertionError: failed\n"
+        + "\tat org.example.ExampleTest.testSomething(ExampleTest.java:42)\n"
+        + "\t... 3 framework frames folded\n"
+        + "\tat org.example.Helper.help(Helper.java:7)\n"
+        + "\tat java.lang.reflect.Method.invoke(Method.java:498)\n"
+        + "\tat java.lang.Thread.run(Thread.java:748)\n",
+        stackTrace.replace(System.lineSeparator(), "\n"));
+  }
+
+  @Test
+  public void testFailureIsRenderedOnlyOnce() {
+    StackTraceRenderer renderer =
+        new StackTraceRenderer(StackTraceRenderer.DEFAULT_FOLDED_PACKAGES, false);
+    AssertionError failure = createFailure("failed");
+
+    Assert.assertSame(renderer.render(failure), renderer.render(failure));
+  }
+
+  @Test
+  public void testFramesWithCrLfAreFolded() {
+    StackTraceRenderer renderer =
+        new StackTraceRenderer(StackTraceRenderer.DEFAULT_FOLDED_PACKAGES, false);
+
+    String stackTrace = renderer.render(createFailureWithCrLf("failed"));
+
+    Assert.assertTrue(stackTrace.contains("\t... 3 framework frames folded\n"));
+    Assert.assertFalse(stackTrace.contains("\r"));
+  }
+
+  @Test
+  public void testIdenticalStackTracesAreDeduplicatedInTextResult() throws IOException {
+    ResultUtil.setStackTraceRenderer(
+        new StackTraceRenderer(Collections.<String> emptyList(), true));
+    Map<String, String> writtenStackTraces = ResultUtil.newWrittenStackTraces();
+    Assert.assertNotNull(writtenStackTraces);
+
+    StringWriter writer = new StringWriter();
+    ResultUtil.dumpTextTestCaseResult(
+        createTestCaseResult("testFirst", createFailure("failed")), writtenStackTraces, writer);
+    ResultUtil.dumpTextTestCaseResult(
+        createTestCaseResult("testSecond", createFailure("failed")), writtenStackTraces, writer);
+    ResultUtil.dumpTextTestCaseResult(
+        createTestCaseResult("testThird", createFailure("other")), writtenStackTraces, writer);
+
+    String text = writer.toString();
+    Assert.assertEquals(2, countOccurrences(text, "ExampleTest.java:42"));
+    Assert.assertTrue(text.contains("testSecond  Time elapsed: 0 sec  <<< FAILURE!\n"
+        + "java.lang.AssertionError: failed\n"
+        + "\t... same stack trace as testFirst\n"));
+    Assert.assertFalse(text.contains("same stack trace as testSecond"));
+  }
+
+  @Test
+  public void testSingleFrameworkFrameIsNotFolded() {
+    StackTraceRenderer renderer = new StackTraceRenderer(
+        Collections.singletonList("org.everit.osgi.dev.testrunner."), false);
+
+    String stackTrace = renderer.render(createFailure("failed"));
+
+    Assert.assertTrue(stackTrace.contains(
+        "\tat org.everit.osgi.dev.testrunner.internal.TestExtender.runTest"));
+    Assert.assertFalse(stackTrace.contains("folded"));
+  }
+
+  @Test
+  public void testStackTracesAreDeduplicatedAcrossTestClassResultAndSpooledTestCases()
+      throws IOException {
+    ResultUtil.setStackTraceRenderer(
+        new StackTraceRenderer(Collections.<String> emptyList(), true));
+    TestClassResult testClassResult = new TestClassResult();
+    testClassResult.className = "org.example.ExampleTest";
+    testClassResult.runCount = 1;
+    testClassResult.failureCount = 1;
+    testClassResult.testCaseResults.add(createTestCaseResult("testFirst", createFailure("failed")));
+    Map<String, String> writtenStackTraces = ResultUtil.newWrittenStackTraces();
+
+    StringWriter writer = new StringWriter();
+    ResultUtil.dumpTextResult(testClassResult, null, writtenStackTraces, writer);
+    ResultUtil.dumpTextTestCaseResult(
+        createTestCaseResult("testSecond", createFailure("failed")), writtenStackTraces, writer);
+
+    String text = writer.toString();
+    Assert.assertEquals(1, countOccurrences(text, "ExampleTest.java:42"));
+    Assert.assertTrue(text.contains("\t... same stack trace as testFirst\n"));
+  }
+
+  @Test
+  public void testStackTracesAreNotDeduplicatedByDefault() throws IOException {
+    Map<String, String> writtenStackTraces = ResultUtil.newWrittenStackTraces();
+    Assert.assertNull(writtenStackTraces);
+
+    StringWriter writer = new StringWriter();
+    ResultUtil.dumpTextTestCaseResult(
+        createTestCaseResult("testFirst", createFailure("failed")), writtenStackTraces, writer);
+    ResultUtil.dumpTextTestCaseResult(
+        createTestCaseResult("testSecond", createFailure("failed")), writtenStackTraces, writer);
+
+    String text = writer.toString();
+    Assert.assertEquals(2, countOccurrences(text, "ExampleTest.java:42"));
+    Assert.assertFalse(text.contains("same stack trace as"));
+  }
+
+  @Test
+  public void testWithoutFoldedPackagesTheStackTraceIsPrintedAsIs() {
+    StackTraceRenderer renderer =
+        new StackTraceRenderer(Collections.<String> emptyList(), false);
+    AssertionError failure = createFailure("failed");
+
+    Assert.assertEquals(printStackTrace(failure), renderer.render(failure));
+  }
+}
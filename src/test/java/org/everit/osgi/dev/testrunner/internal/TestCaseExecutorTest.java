@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCaseExecutorTest {
+
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private CountDownLatch release;
+
+  private ExecutorService workerPool;
+
+  @After
+  public void after() throws InterruptedException {
+    release.countDown();
+    workerPool.shutdownNow();
+    workerPool.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  @Before
+  public void before() {
+    workerPool = Executors.newCachedThreadPool();
+    release = new CountDownLatch(1);
+  }
+
+  /**
+   * Executes a task that blocks until {@link #release} is counted down.
+   *
+   * @return The thread that ran the task or <code>null</code> if the task did not start in time.
+   */
+  private Thread executeBlockingTask(final TestCaseExecutor executor)
+      throws InterruptedException {
+    AtomicReference<Thread> thread = new AtomicReference<>();
+    CountDownLatch started = new CountDownLatch(1);
+    executor.execute(() -> {
+      thread.set(Thread.currentThread());
+      started.countDown();
+      try {
+        release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    Assert.assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    return thread.get();
+  }
+
+  private Thread executeTask(final TestCaseExecutor executor) {
+    AtomicReference<Thread> thread = new AtomicReference<>();
+    executor.execute(() -> thread.set(Thread.currentThread()));
+    return thread.get();
+  }
+
+  @Test
+  public void testParallelismOfTestClassIsLimited() throws InterruptedException {
+    Semaphore sharedThreadPermits = new Semaphore(10);
+    TestCaseExecutor executor = new TestCaseExecutor(workerPool, sharedThreadPermits, 3);
+
+    Assert.assertNotSame(Thread.currentThread(), executeBlockingTask(executor));
+    Assert.assertNotSame(Thread.currentThread(), executeBlockingTask(executor));
+    Assert.assertSame(Thread.currentThread(), executeTask(executor));
+    Assert.assertEquals(8, sharedThreadPermits.availablePermits());
+  }
+
+  @Test
+  public void testPermitsAreReleasedWhenTasksFinish()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    ExecutorService singleThreadPool = Executors.newSingleThreadExecutor();
+    try {
+      Semaphore sharedThreadPermits = new Semaphore(1);
+      TestCaseExecutor executor = new TestCaseExecutor(singleThreadPool, sharedThreadPermits, 2);
+
+      Assert.assertNotSame(Thread.currentThread(), executeBlockingTask(executor));
+      Assert.assertEquals(0, sharedThreadPermits.availablePermits());
+
+      release.countDown();
+      singleThreadPool.submit(() -> {
+      }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      Assert.assertEquals(1, sharedThreadPermits.availablePermits());
+
+      release = new CountDownLatch(1);
+      Assert.assertNotSame(Thread.currentThread(), executeBlockingTask(executor));
+    } finally {
+      release.countDown();
+      singleThreadPool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testRejectedTaskRunsOnCallingThreadAndReleasesPermit() {
+    Semaphore sharedThreadPermits = new Semaphore(1);
+    TestCaseExecutor executor = new TestCaseExecutor(workerPool, sharedThreadPermits, 2);
+    workerPool.shutdown();
+
+    Assert.assertSame(Thread.currentThread(), executeTask(executor));
+    Assert.assertEquals(1, sharedThreadPermits.availablePermits());
+  }
+
+  @Test
+  public void testSharedBudgetIsLimitedAcrossTestClasses() throws InterruptedException {
+    Semaphore sharedThreadPermits = new Semaphore(1);
+    TestCaseExecutor firstExecutor = new TestCaseExecutor(workerPool, sharedThreadPermits, 4);
+    TestCaseExecutor secondExecutor = new TestCaseExecutor(workerPool, sharedThreadPermits, 4);
+
+    Assert.assertNotSame(Thread.currentThread(), executeBlockingTask(firstExecutor));
+    Assert.assertSame(Thread.currentThread(), executeTask(secondExecutor));
+    Assert.assertSame(Thread.currentThread(), executeTask(firstExecutor));
+  }
+
+  @Test
+  public void testTasksRunOnCallingThreadWithoutParallelism() {
+    Semaphore sharedThreadPermits = new Semaphore(10);
+    TestCaseExecutor executor = new TestCaseExecutor(workerPool, sharedThreadPermits, 1);
+
+    Assert.assertSame(Thread.currentThread(), executeTask(executor));
+    Assert.assertEquals(10, sharedThreadPermits.availablePermits());
+  }
+}
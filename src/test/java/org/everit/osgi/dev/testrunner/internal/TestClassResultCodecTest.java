@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.everit.osgi.dev.testrunner.engine.TestCaseResult;
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestClassResultCodecTest {
+
+  private static TestCaseResult createTestCaseResult(final String testMethodName,
+      final Throwable failure) {
+    TestCaseResult testCaseResult = new TestCaseResult();
+    testCaseResult.testMethodName = testMethodName;
+    testCaseResult.startTime = 100;
+    testCaseResult.finishTime = 250;
+    testCaseResult.failure = failure;
+    return testCaseResult;
+  }
+
+  private static TestClassResult createTestClassResult() {
+    TestClassResult testClassResult = new TestClassResult();
+    testClassResult.className = "org.example.ExampleTest";
+    testClassResult.startTime = 100;
+    testClassResult.finishTime = 400;
+    testClassResult.runCount = 3;
+    testClassResult.failureCount = 1;
+    testClassResult.errorCount = 1;
+    testClassResult.ignoreCount = 1;
+    return testClassResult;
+  }
+
+  private static TestClassResult readFromBytes(final byte[] bytes) throws IOException {
+    return TestClassResultCodec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  private static byte[] writeToBytes(final TestClassResult testClassResult) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bout)) {
+      TestClassResultCodec.write(testClassResult, out);
+    }
+    return bout.toByteArray();
+  }
+
+  @Test
+  public void testFormatVersion1IsReadWithoutFailures() throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bout)) {
+      out.writeInt(1);
+      TestClassResultCodec.writeString("org.example.ExampleTest", out);
+      out.writeLong(100);
+      out.writeLong(400);
+      out.writeLong(2);
+      out.writeLong(0);
+      out.writeLong(0);
+      out.writeLong(1);
+      out.writeInt(1);
+      TestClassResultCodec.writeString("testSomething", out);
+      out.writeLong(150);
+      out.writeLong(200);
+    }
+
+    TestClassResult testClassResult = readFromBytes(bout.toByteArray());
+
+    Assert.assertEquals("org.example.ExampleTest", testClassResult.className);
+    Assert.assertEquals(100, testClassResult.startTime);
+    Assert.assertEquals(400, testClassResult.finishTime);
+    Assert.assertEquals(2, testClassResult.runCount);
+    Assert.assertEquals(1, testClassResult.ignoreCount);
+    Assert.assertTrue(testClassResult.previousAttempts.isEmpty());
+    Assert.assertEquals(1, testClassResult.testCaseResults.size());
+    TestCaseResult testCaseResult = testClassResult.testCaseResults.get(0);
+    Assert.assertEquals("testSomething", testCaseResult.testMethodName);
+    Assert.assertEquals(150, testCaseResult.startTime);
+    Assert.assertEquals(200, testCaseResult.finishTime);
+    Assert.assertNull(testCaseResult.failure);
+  }
+
+  @Test
+  public void testRoundTripKeepsFailuresAndPreviousAttempts() throws IOException {
+    AssertionError assertionError = new AssertionError("expected:<1> but was:<2>");
+    IllegalStateException error = new IllegalStateException();
+
+    TestClassResult previousAttempt = createTestClassResult();
+    previousAttempt.testCaseResults.add(
+        createTestCaseResult("testFlaky", new AssertionError("first attempt")));
+
+    TestClassResult testClassResult = createTestClassResult();
+    testClassResult.previousAttempts.add(previousAttempt);
+    testClassResult.testCaseResults.add(createTestCaseResult("testFailure", assertionError));
+    testClassResult.testCaseResults.add(createTestCaseResult("testError", error));
+    testClassResult.testCaseResults.add(createTestCaseResult("testFlaky", null));
+
+    TestClassResult readResult = readFromBytes(writeToBytes(testClassResult));
+
+    Assert.assertEquals(testClassResult.className, readResult.className);
+    Assert.assertEquals(testClassResult.startTime, readResult.startTime);
+    Assert.assertEquals(testClassResult.finishTime, readResult.finishTime);
+    Assert.assertEquals(testClassResult.runCount, readResult.runCount);
+    Assert.assertEquals(testClassResult.failureCount, readResult.failureCount);
+    Assert.assertEquals(testClassResult.errorCount, readResult.errorCount);
+    Assert.assertEquals(testClassResult.ignoreCount, readResult.ignoreCount);
+    Assert.assertEquals(3, readResult.testCaseResults.size());
+
+    TestClassResultCodec.RecordedFailure failure =
+        (TestClassResultCodec.RecordedFailure) readResult.testCaseResults.get(0).failure;
+    Assert.assertEquals(AssertionError.class.getName(), failure.type);
+    Assert.assertEquals(assertionError.getMessage(), failure.getMessage());
+    Assert.assertTrue(failure.assertion);
+    Assert.assertTrue(ResultUtil.isAssertionFailure(failure));
+    Assert.assertEquals(ResultUtil.renderStackTrace(assertionError),
+        failure.renderedStackTrace);
+
+    TestClassResultCodec.RecordedFailure recordedError =
+        (TestClassResultCodec.RecordedFailure) readResult.testCaseResults.get(1).failure;
+    Assert.assertEquals(IllegalStateException.class.getName(), recordedError.type);
+    Assert.assertNull(recordedError.getMessage());
+    Assert.assertFalse(recordedError.assertion);
+    Assert.assertEquals(IllegalStateException.class.getName(), recordedError.toString());
+
+    Assert.assertNull(readResult.testCaseResults.get(2).failure);
+
+    Assert.assertEquals(1, readResult.previousAttempts.size());
+    TestClassResult readPreviousAttempt = readResult.previousAttempts.get(0);
+    Assert.assertEquals(1, readPreviousAttempt.testCaseResults.size());
+    Assert.assertEquals("first attempt",
+        readPreviousAttempt.testCaseResults.get(0).failure.getMessage());
+  }
+
+  @Test
+  public void testRoundTripOfRecordedFailureKeepsRenderedStackTrace() throws IOException {
+    TestClassResult testClassResult = createTestClassResult();
+    testClassResult.testCaseResults.add(
+        createTestCaseResult("testFailure", new AssertionError("failed")));
+
+    TestClassResult readOnce = readFromBytes(writeToBytes(testClassResult));
+    TestClassResult readTwice = readFromBytes(writeToBytes(readOnce));
+
+    TestClassResultCodec.RecordedFailure failureReadOnce =
+        (TestClassResultCodec.RecordedFailure) readOnce.testCaseResults.get(0).failure;
+    TestClassResultCodec.RecordedFailure failureReadTwice =
+        (TestClassResultCodec.RecordedFailure) readTwice.testCaseResults.get(0).failure;
+    Assert.assertEquals(failureReadOnce.type, failureReadTwice.type);
+    Assert.assertEquals(failureReadOnce.renderedStackTrace, failureReadTwice.renderedStackTrace);
+  }
+
+  @Test
+  public void testStringRoundTripWithNullAndNonAsciiValues() throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bout)) {
+      TestClassResultCodec.writeString(null, out);
+      TestClassResultCodec.writeString("\u00e1rv\u00edzt\u0171r\u0151", out);
+      TestClassResultCodec.writeString("", out);
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bout.toByteArray()));
+    Assert.assertNull(TestClassResultCodec.readString(in));
+    Assert.assertEquals("\u00e1rv\u00edzt\u0171r\u0151", TestClassResultCodec.readString(in));
+    Assert.assertEquals("", TestClassResultCodec.readString(in));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnknownFormatVersionIsRejected() throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bout)) {
+      out.writeInt(Integer.MAX_VALUE);
+    }
+    readFromBytes(bout.toByteArray());
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.everit.osgi.dev.testrunner.TestRunnerConstants;
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+public class TestRunHistoryTest {
+
+  private static final String HISTORY_FILE_NAME = "eosgi-test-history.properties";
+
+  private static final String TEST_CLASS_NAME = Object.class.getName();
+
+  /**
+   * Creates a test service whose reference has the specified service id, test id and priority.
+   * References with lower service id rank higher, as in the OSGi framework.
+   */
+  @SuppressWarnings("unchecked")
+  private static TestServiceWithReference createTest(final long serviceId, final String testId,
+      final Integer priority) {
+
+    Map<String, Object> properties = new HashMap<>();
+    properties.put(Constants.SERVICE_ID, serviceId);
+    properties.put(TestRunnerConstants.SERVICE_PROPERTY_TEST_ID, testId);
+    if (priority != null) {
+      properties.put(TestRunnerConstants.SERVICE_PROPERTY_TEST_PRIORITY, priority);
+    }
+
+    ServiceReference<Object> reference = (ServiceReference<Object>) Proxy.newProxyInstance(
+        TestRunHistoryTest.class.getClassLoader(), new Class<?>[] { ServiceReference.class },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getProperty":
+              return properties.get(args[0]);
+            case "compareTo":
+              long otherServiceId =
+                  (Long) ((ServiceReference<?>) args[0]).getProperty(Constants.SERVICE_ID);
+              return Long.compare(otherServiceId, serviceId);
+            case "equals":
+              return proxy == args[0];
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "toString":
+              return "TestReference[" + testId + "]";
+            default:
+              return null;
+          }
+        });
+    return new TestServiceWithReference(reference, new Object());
+  }
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private TestRunHistory createHistory(final String... entries) throws IOException {
+    Properties properties = new Properties();
+    for (int i = 0; i < entries.length; i += 2) {
+      properties.setProperty(entries[i], entries[i + 1]);
+    }
+    File resultFolder = temporaryFolder.getRoot();
+    try (OutputStream out = new FileOutputStream(new File(resultFolder, HISTORY_FILE_NAME))) {
+      properties.store(out, null);
+    }
+    return new TestRunHistory(resultFolder);
+  }
+
+  private TestClassResult createResult(final long startTime, final long finishTime,
+      final boolean failed) {
+    TestClassResult testClassResult = new TestClassResult();
+    testClassResult.className = TEST_CLASS_NAME;
+    testClassResult.startTime = startTime;
+    testClassResult.finishTime = finishTime;
+    testClassResult.runCount = 1;
+    testClassResult.failureCount = failed ? 1 : 0;
+    return testClassResult;
+  }
+
+  private List<TestServiceWithReference> sort(final TestRunHistory history,
+      final TestServiceWithReference... tests) {
+    List<TestServiceWithReference> result = new ArrayList<>(Arrays.asList(tests));
+    result.sort(history.createSchedulingComparator());
+    return result;
+  }
+
+  @Test
+  public void testFailedTestsComeFirstWithinTheSamePriority() throws IOException {
+    TestRunHistory history = createHistory(
+        "duration." + TEST_CLASS_NAME + "#slow", "5000",
+        "duration." + TEST_CLASS_NAME + "#failed", "10",
+        "failed." + TEST_CLASS_NAME + "#failed", "true");
+
+    TestServiceWithReference slow = createTest(1, "slow", null);
+    TestServiceWithReference failed = createTest(2, "failed", null);
+
+    Assert.assertEquals(Arrays.asList(failed, slow), sort(history, slow, failed));
+  }
+
+  @Test
+  public void testHigherPriorityComesFirst() throws IOException {
+    TestRunHistory history = createHistory(
+        "failed." + TEST_CLASS_NAME + "#failed", "true");
+
+    TestServiceWithReference failed = createTest(1, "failed", null);
+    TestServiceWithReference important = createTest(2, "important", 10);
+    TestServiceWithReference unimportant = createTest(3, "unimportant", -10);
+
+    Assert.assertEquals(Arrays.asList(important, failed, unimportant),
+        sort(history, unimportant, failed, important));
+  }
+
+  @Test
+  public void testRecordedResultsAreReadInTheNextRun() throws IOException {
+    TestServiceWithReference fast = createTest(1, "fast", null);
+    TestServiceWithReference slow = createTest(2, "slow", null);
+
+    TestRunHistory history = new TestRunHistory(temporaryFolder.getRoot());
+    history.recordResult(fast, createResult(0, 10, false));
+    history.recordResult(slow, createResult(0, 1000, false));
+    history.save();
+
+    TestRunHistory nextHistory = new TestRunHistory(temporaryFolder.getRoot());
+    Assert.assertEquals(10, nextHistory.getExpectedDuration(fast));
+    Assert.assertEquals(1000, nextHistory.getExpectedDuration(slow));
+    Assert.assertFalse(nextHistory.hasFailedPreviously(slow));
+    Assert.assertEquals(Arrays.asList(slow, fast), sort(nextHistory, fast, slow));
+  }
+
+  @Test
+  public void testSameDurationKeepsRegistrationOrder() throws IOException {
+    TestRunHistory history = createHistory(
+        "duration." + TEST_CLASS_NAME + "#first", "100",
+        "duration." + TEST_CLASS_NAME + "#second", "100");
+
+    TestServiceWithReference first = createTest(1, "first", null);
+    TestServiceWithReference second = createTest(2, "second", null);
+
+    Assert.assertEquals(Arrays.asList(first, second), sort(history, second, first));
+  }
+
+  @Test
+  public void testUnknownTestsComeBeforeTestsWithHistoryInDescendingDurationOrder()
+      throws IOException {
+    TestRunHistory history = createHistory(
+        "duration." + TEST_CLASS_NAME + "#fast", "10",
+        "duration." + TEST_CLASS_NAME + "#slow", "5000");
+
+    TestServiceWithReference fast = createTest(1, "fast", null);
+    TestServiceWithReference slow = createTest(2, "slow", null);
+    TestServiceWithReference unknown = createTest(3, "unknown", null);
+
+    Assert.assertEquals(Arrays.asList(unknown, slow, fast), sort(history, fast, slow, unknown));
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.everit.osgi.dev.testrunner.engine.TestCaseResult;
+import org.everit.osgi.dev.testrunner.engine.TestClassResult;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+public class XmlTestSuitesWriterTest {
+
+  private static TestClassResult createTestClassResult(final String className,
+      final Throwable failure) {
+    TestCaseResult testCaseResult = new TestCaseResult();
+    testCaseResult.testMethodName = "testMethod";
+    testCaseResult.startTime = 1000;
+    testCaseResult.finishTime = 1500;
+    testCaseResult.failure = failure;
+
+    TestClassResult testClassResult = new TestClassResult();
+    testClassResult.className = className;
+    testClassResult.startTime = 1000;
+    testClassResult.finishTime = 2000;
+    testClassResult.runCount = 1;
+    testClassResult.failureCount = (failure != null) ? 1 : 0;
+    testClassResult.testCaseResults.add(testCaseResult);
+    return testClassResult;
+  }
+
+  private static Document parse(final File file)
+      throws IOException, ParserConfigurationException, SAXException {
+    return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+  }
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testAttributesAreSortedAndEscaped() throws IOException {
+    File file = new File(temporaryFolder.getRoot(), "results/TEST-all.xml");
+    XmlTestSuitesWriter writer = new XmlTestSuitesWriter(file, 8192);
+    writer.writeTestSuite(
+        createTestClassResult("org.example.ExampleTest", new AssertionError("a<b\n\"c\"&d")),
+        ResultUtil.serializeXmlProperties(Collections.emptyMap(), null), null);
+    writer.close();
+
+    String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    Assert.assertTrue(content, content.contains(
+        "<testsuite errors=\"0\" failures=\"1\" name=\"org.example.ExampleTest\" skipped=\"0\""
+            + " tests=\"1\" time=\"1\""));
+    Assert.assertTrue(content,
+        content.contains("message=\"a&lt;b&#10;&quot;c&quot;&amp;d\""));
+  }
+
+  @Test
+  public void testNothingIsWrittenWithoutResults() {
+    File file = new File(temporaryFolder.getRoot(), "TEST-all.xml");
+    XmlTestSuitesWriter writer = new XmlTestSuitesWriter(file, 8192);
+    writer.flush();
+    writer.close();
+
+    Assert.assertFalse(file.exists());
+  }
+
+  @Test
+  public void testTestSuitesAreAppendedToOneDocument()
+      throws IOException, ParserConfigurationException, SAXException {
+    File file = new File(temporaryFolder.getRoot(), "TEST-all.xml");
+    XmlTestSuitesWriter writer = new XmlTestSuitesWriter(file, 8192);
+    String propertiesXml =
+        ResultUtil.serializeXmlProperties(Collections.singletonMap("key", "a&b"), null);
+
+    writer.writeTestSuite(createTestClassResult("org.example.FirstTest", null), propertiesXml,
+        null);
+    writer.flush();
+    writer.writeTestSuite(
+        createTestClassResult("org.example.SecondTest", new AssertionError("failed")),
+        propertiesXml, null);
+    writer.close();
+    writer.writeTestSuite(createTestClassResult("org.example.IgnoredTest", null), propertiesXml,
+        null);
+
+    Document document = parse(file);
+    Element testSuites = document.getDocumentElement();
+    Assert.assertEquals("testsuites", testSuites.getTagName());
+
+    NodeList testSuiteNodes = testSuites.getElementsByTagName("testsuite");
+    Assert.assertEquals(2, testSuiteNodes.getLength());
+
+    Element firstTestSuite = (Element) testSuiteNodes.item(0);
+    Assert.assertEquals("org.example.FirstTest", firstTestSuite.getAttribute("name"));
+    Assert.assertEquals("0", firstTestSuite.getAttribute("failures"));
+    Element property = (Element) firstTestSuite.getElementsByTagName("property").item(0);
+    Assert.assertEquals("key", property.getAttribute("name"));
+    Assert.assertEquals("a&b", property.getAttribute("value"));
+
+    Element secondTestSuite = (Element) testSuiteNodes.item(1);
+    Assert.assertEquals("org.example.SecondTest", secondTestSuite.getAttribute("name"));
+    Assert.assertEquals("1", secondTestSuite.getAttribute("failures"));
+    Element failure = (Element) secondTestSuite.getElementsByTagName("failure").item(0);
+    Assert.assertEquals("failed", failure.getAttribute("message"));
+    Assert.assertEquals(AssertionError.class.getName(), failure.getAttribute("type"));
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.testrunner.util.testclasscapability;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestClassCapabilityUtilTest {
+
+  private static List<TestClassCapabilityDTO> resolve(final String header) {
+    return new ArrayList<>(TestClassCapabilityUtil.resolveTestCaseCapabilities(header));
+  }
+
+  @Test
+  public void testCapabilitiesOfOtherNamespacesAreIgnored() {
+    List<TestClassCapabilityDTO> capabilities = resolve(
+        "osgi.service;objectClass=org.example.Service,"
+            + "eosgi.testClass;eosgi.testClass=org.example.FirstTest");
+
+    Assert.assertEquals(1, capabilities.size());
+    Assert.assertEquals("org.example.FirstTest", capabilities.get(0).clazz);
+  }
+
+  @Test
+  public void testDefaultPriorityAndCount() {
+    List<TestClassCapabilityDTO> capabilities =
+        resolve("eosgi.testClass;eosgi.testClass=org.example.FirstTest");
+
+    Assert.assertEquals(1, capabilities.size());
+    Assert.assertEquals(0, capabilities.get(0).priority);
+    Assert.assertEquals(1, capabilities.get(0).count);
+  }
+
+  @Test(expected = TestClassCapabilitySyntaxException.class)
+  public void testMissingClassAttributeIsRejected() {
+    resolve("eosgi.testClass;priority=1");
+  }
+
+  @Test(expected = TestClassCapabilitySyntaxException.class)
+  public void testNonNumericPriorityIsRejected() {
+    resolve("eosgi.testClass;eosgi.testClass=org.example.FirstTest;priority=high");
+  }
+
+  @Test
+  public void testNullHeaderHasNoCapabilities() {
+    Assert.assertTrue(TestClassCapabilityUtil.resolveTestCaseCapabilities(null).isEmpty());
+  }
+
+  @Test
+  public void testPriorityIsParsed() {
+    List<TestClassCapabilityDTO> capabilities = resolve(
+        "eosgi.testClass;eosgi.testClass=org.example.FirstTest;priority=5,"
+            + "eosgi.testClass;eosgi.testClass=org.example.SecondTest;priority=-3");
+
+    Assert.assertEquals(2, capabilities.size());
+    Assert.assertEquals("org.example.FirstTest", capabilities.get(0).clazz);
+    Assert.assertEquals(5, capabilities.get(0).priority);
+    Assert.assertEquals("org.example.SecondTest", capabilities.get(1).clazz);
+    Assert.assertEquals(-3, capabilities.get(1).priority);
+  }
+
+  @Test
+  public void testTypedAttributesAreParsed() {
+    List<TestClassCapabilityDTO> capabilities = resolve(
+        "eosgi.testClass;eosgi.testClass=org.example.FirstTest;priority:Long=7;"
+            + "executionCount:Long=2");
+
+    Assert.assertEquals(1, capabilities.size());
+    Assert.assertEquals(7, capabilities.get(0).priority);
+    Assert.assertEquals(2, capabilities.get(0).count);
+  }
+}